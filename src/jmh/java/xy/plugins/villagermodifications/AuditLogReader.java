@@ -0,0 +1,285 @@
+package xy.plugins.villagermodifications;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Offline reader for audit log segments written by {@link AuditLog}. Aggregates events by type, villager and book,
+ * to find villagers being traded with unusually often or books being offered unusually cheaply.
+ * Segments are memory mapped and scanned in place, in parallel.
+ *
+ * <p>Usage: {@code ./gradlew auditReport -Paudit.args="<audit directory or segment files> [options]"}</p>
+ * <ul>
+ *     <li>{@code --villager <uuid>} only include events for one villager</li>
+ *     <li>{@code --since <time>} and {@code --until <time>}, ISO-8601 instants such as 2024-06-01T00:00:00Z</li>
+ *     <li>{@code --top <count>} number of villagers and books listed, default 20</li>
+ *     <li>{@code --dump} also print every matching event, oldest segment first</li>
+ * </ul>
+ */
+public final class AuditLogReader {
+    private static final String[] TYPE_NAMES = {"unknown", "enchantment replaced", "level changed", "price changed",
+            "restock clamped"};
+
+    private UUID villager;
+    private long since = Long.MIN_VALUE;
+    private long until = Long.MAX_VALUE;
+    private int top = 20;
+    private boolean dump;
+
+    public static void main(String[] args) throws IOException {
+        AuditLogReader reader = new AuditLogReader();
+        List<File> files = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--villager" -> reader.villager = UUID.fromString(args[++i]);
+                case "--since" -> reader.since = Instant.parse(args[++i]).toEpochMilli();
+                case "--until" -> reader.until = Instant.parse(args[++i]).toEpochMilli();
+                case "--top" -> reader.top = Integer.parseInt(args[++i]);
+                case "--dump" -> reader.dump = true;
+                default -> addFiles(new File(args[i]), files);
+            }
+        }
+
+        if(files.isEmpty()) {
+            System.err.println("Usage: AuditLogReader <audit directory or segment files> [--villager <uuid>] "
+                                       + "[--since <instant>] [--until <instant>] [--top <count>] [--dump]");
+            System.exit(1);
+        }
+
+        if(reader.dump) {
+            for (File file : files) {
+                reader.read(file, true);
+            }
+        }
+
+        long start = System.nanoTime();
+        Report report;
+
+        try {
+            report = files.parallelStream().map(file -> {
+                try {
+                    return reader.read(file, false);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(file + ": " + e.getMessage(), e);
+                }
+            }).reduce(Report::merge).orElseGet(Report::new);
+        } catch (UncheckedIOException e) {
+            System.err.println("Failed to read " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        System.out.printf("Read %,d events from %d segments in %.2fs%n%n", report.total, files.size(),
+                          (System.nanoTime() - start) / 1e9);
+        report.print(reader.top);
+    }
+
+    //Adds a segment, or every segment in a directory oldest first
+    private static void addFiles(File file, List<File> files) {
+        if(!file.isDirectory()) {
+            files.add(file);
+            return;
+        }
+
+        File[] segments = file.listFiles((dir, name) -> name.endsWith(AuditLog.EXTENSION));
+
+        if(segments != null) {
+            Arrays.sort(segments, Comparator.comparing(File::getName));
+            files.addAll(Arrays.asList(segments));
+        }
+    }
+
+    private Report read(File file, boolean print) throws IOException {
+        Report report = new Report();
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            String[] keys = AuditLog.readKeys(segment);
+            int headerSize = segment.getInt(AuditLog.HEADER_SIZE);
+
+            for (int base = headerSize; base + AuditLog.RECORD_SIZE <= segment.limit(); base += AuditLog.RECORD_SIZE) {
+                byte type = segment.get(base + AuditLog.TYPE);
+                long time = segment.getLong(base + AuditLog.TIME);
+
+                //Unwritten, or left incomplete by a crash
+                if(type <= 0 || type >= TYPE_NAMES.length || time < since || time >= until) {
+                    continue;
+                }
+
+                long most = segment.getLong(base + AuditLog.VILLAGER_MOST);
+                long least = segment.getLong(base + AuditLog.VILLAGER_LEAST);
+
+                if(villager != null && (most != villager.getMostSignificantBits()
+                        || least != villager.getLeastSignificantBits())) {
+                    continue;
+                }
+
+                if(print) {
+                    System.out.println(describe(segment, base, keys, format));
+                } else {
+                    report.add(segment, base, keys);
+                }
+            }
+        }
+
+        return report;
+    }
+
+    private static String describe(ByteBuffer segment, int base, String[] keys, SimpleDateFormat format) {
+        String oldBook = book(keys, segment.getShort(base + AuditLog.OLD_ENCHANTMENT), segment.get(base + AuditLog.OLD_LEVEL));
+        String newBook = book(keys, segment.getShort(base + AuditLog.NEW_ENCHANTMENT), segment.get(base + AuditLog.NEW_LEVEL));
+
+        return "[" + format.format(new Date(segment.getLong(base + AuditLog.TIME))) + "] "
+                + new UUID(segment.getLong(base + AuditLog.VILLAGER_MOST), segment.getLong(base + AuditLog.VILLAGER_LEAST))
+                + " recipe " + segment.getInt(base + AuditLog.RECIPE) + ": " + TYPE_NAMES[segment.get(base + AuditLog.TYPE)]
+                + " " + (oldBook.equals(newBook) ? newBook : oldBook + " -> " + newBook)
+                + ", price " + segment.getInt(base + AuditLog.OLD_PRICE) + " -> " + segment.getInt(base + AuditLog.NEW_PRICE)
+                + ", max uses " + segment.getInt(base + AuditLog.OLD_MAX_USES) + " -> " + segment.getInt(base + AuditLog.NEW_MAX_USES);
+    }
+
+    private static String book(String[] keys, int id, int level) {
+        if(id == AuditLog.NONE) {
+            return "-";
+        }
+
+        return (id >= 0 && id < keys.length ? keys[id] : "unknown") + ":" + level;
+    }
+
+    private static final class Report {
+        private long total;
+        private long first = Long.MAX_VALUE;
+        private long last = Long.MIN_VALUE;
+        private final long[] types = new long[TYPE_NAMES.length];
+        private final Map<UUID, long[]> villagers = new HashMap<>(); //Counts indexed by type
+        private final Map<String, BookStats> books = new HashMap<>(); //Keyed by resulting enchantment and level
+
+        void add(ByteBuffer segment, int base, String[] keys) {
+            byte type = segment.get(base + AuditLog.TYPE);
+            long time = segment.getLong(base + AuditLog.TIME);
+
+            total++;
+            first = Math.min(first, time);
+            last = Math.max(last, time);
+            types[type]++;
+
+            UUID uuid = new UUID(segment.getLong(base + AuditLog.VILLAGER_MOST), segment.getLong(base + AuditLog.VILLAGER_LEAST));
+            villagers.computeIfAbsent(uuid, key -> new long[TYPE_NAMES.length])[type]++;
+
+            int id = segment.getShort(base + AuditLog.NEW_ENCHANTMENT);
+
+            if(id != AuditLog.NONE) {
+                books.computeIfAbsent(book(keys, id, segment.get(base + AuditLog.NEW_LEVEL)), key -> new BookStats())
+                        .add(type, segment.getInt(base + AuditLog.NEW_PRICE));
+            }
+        }
+
+        Report merge(Report other) {
+            total += other.total;
+            first = Math.min(first, other.first);
+            last = Math.max(last, other.last);
+
+            for (int i = 0; i < types.length; i++) {
+                types[i] += other.types[i];
+            }
+
+            other.villagers.forEach((uuid, counts) -> villagers.merge(uuid, counts, (a, b) -> {
+                for (int i = 0; i < a.length; i++) {
+                    a[i] += b[i];
+                }
+
+                return a;
+            }));
+            other.books.forEach((key, stats) -> books.merge(key, stats, BookStats::merge));
+
+            return this;
+        }
+
+        void print(int top) {
+            if(total == 0) {
+                System.out.println("No matching events");
+                return;
+            }
+
+            System.out.println("Events from " + Instant.ofEpochMilli(first) + " to " + Instant.ofEpochMilli(last));
+
+            for (int type = 1; type < types.length; type++) {
+                System.out.printf("  %-22s %,d%n", TYPE_NAMES[type], types[type]);
+            }
+
+            System.out.printf("%nTop %d of %,d villagers by events%n", Math.min(top, villagers.size()), villagers.size());
+            villagers.entrySet().stream()
+                    .sorted(Comparator.comparingLong((Map.Entry<UUID, long[]> entry) -> Arrays.stream(entry.getValue()).sum())
+                                    .reversed())
+                    .limit(top)
+                    .forEach(entry -> {
+                        long[] counts = entry.getValue();
+                        System.out.printf("  %s %,8d rewrites %,8d restock clamps%n", entry.getKey(),
+                                          counts[AuditLog.ENCHANTMENT_REPLACED] + counts[AuditLog.LEVEL_CHANGED]
+                                                  + counts[AuditLog.PRICE_CHANGED],
+                                          counts[AuditLog.REPLENISH_CLAMPED]);
+                    });
+
+            System.out.printf("%nTop %d books by restock clamps%n", Math.min(top, books.size()));
+            printBooks(top, Comparator.comparingLong((BookStats stats) -> stats.clamps).reversed());
+
+            System.out.printf("%nTop %d cheapest books offered%n", Math.min(top, books.size()));
+            printBooks(top, Comparator.comparingInt((BookStats stats) -> stats.minPrice));
+        }
+
+        private void printBooks(int top, Comparator<BookStats> order) {
+            books.entrySet().stream()
+                    .sorted(Map.Entry.comparingByValue(order))
+                    .limit(top)
+                    .forEach(entry -> {
+                        BookStats stats = entry.getValue();
+                        System.out.printf("  %-24s %,8d rewrites %,8d restock clamps, price min %d mean %.1f%n",
+                                          entry.getKey(), stats.rewrites, stats.clamps, stats.minPrice,
+                                          (double) stats.priceSum / Math.max(1, stats.rewrites + stats.clamps));
+                    });
+        }
+    }
+
+    private static final class BookStats {
+        private long rewrites;
+        private long clamps;
+        private long priceSum;
+        private int minPrice = Integer.MAX_VALUE;
+
+        void add(byte type, int price) {
+            if(type == AuditLog.REPLENISH_CLAMPED) {
+                clamps++;
+            } else {
+                rewrites++;
+            }
+
+            priceSum += price;
+            minPrice = Math.min(minPrice, price);
+        }
+
+        BookStats merge(BookStats other) {
+            rewrites += other.rewrites;
+            clamps += other.clamps;
+            priceSum += other.priceSum;
+            minPrice = Math.min(minPrice, other.minPrice);
+
+            return this;
+        }
+    }
+}
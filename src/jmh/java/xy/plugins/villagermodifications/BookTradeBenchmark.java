@@ -0,0 +1,166 @@
+package xy.plugins.villagermodifications;
+
+import org.bukkit.Material;
+import org.bukkit.inventory.MerchantRecipe;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The enchanted book decisions made by checkBookTrades, for a full librarian trade list, and the restock price clamp
+ * with and without trade tags.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BookTradeBenchmark {
+    private static final int VILLAGERS = 256;
+
+    @Param({"1", "5"})
+    public int villagerLevel;
+
+    @Param({"true", "false"})
+    public boolean limits;
+
+    private EnchantmentTables tables;
+    private BookTradePlanner planner;
+    private TradeRuleTable tradeRules;
+    private StandInVillager[] villagers;
+    private int[][] tags; //Trade tags for each villager, as stored when its trades are processed
+    private BookPlan plan;
+    private SplittableRandom random;
+    private int next;
+
+    @Setup
+    public void setup() {
+        random = new SplittableRandom(37);
+        EnchantmentCatalog catalog = StandInEnchantments.catalog();
+        tables = EnchantmentTables.compile(StandInConfigs.minVillagerLevels(catalog, random), null, catalog,
+                                           StandInConfigs.LOGGER);
+
+        planner = new BookTradePlanner(tables, limits, limits);
+        tradeRules = TradeRuleTable.compile(StandInConfigs.tradeRules(catalog, 100, 100, random), catalog,
+                                            StandInConfigs.LOGGER);
+        villagers = new StandInVillager[VILLAGERS];
+        plan = new BookPlan();
+
+        tags = new int[VILLAGERS][];
+
+        for (int i = 0; i < VILLAGERS; i++) {
+            villagers[i] = StandInVillager.librarian(catalog, villagerLevel, random);
+
+            List<MerchantRecipe> recipes = villagers[i].recipes;
+            tags[i] = TradeTags.create(0, recipes.size());
+
+            for (int pos = 0; pos < recipes.size(); pos++) {
+                MerchantRecipe recipe = recipes.get(pos);
+                TradeRule rule = tradeRules.find(recipe);
+                int book = bookCell(recipe);
+                int minPrice = TradeProcessor.getMinReplenishPrice(
+                        recipe.getIngredients().getFirst().getAmount(), replenishFloor(recipe, book), rule);
+
+                TradeTags.set(tags[i], pos, recipe, rule, minPrice, book);
+            }
+        }
+    }
+
+    //As the plugin finds the book cell, from the highest level stored enchantment
+    private static int bookCell(MerchantRecipe recipe) {
+        StandInBookMeta meta = StandInVillager.bookMeta(recipe);
+        int id = -1;
+        int level = 0;
+
+        for (int i = 0; meta != null && i < meta.ids.length; i++) {
+            if(meta.levels[i] > level) {
+                id = meta.ids[i];
+                level = meta.levels[i];
+            }
+        }
+
+        return EnchantmentTables.cell(id, level);
+    }
+
+    private float replenishFloor(MerchantRecipe recipe, int book) {
+        return limits && recipe.getResult().getType() == Material.ENCHANTED_BOOK ? tables.getReplenishFloor(book) : 0;
+    }
+
+    private int nextVillager() {
+        int villager = next;
+        next = (next + 1) % VILLAGERS;
+        return villager;
+    }
+
+    @Benchmark
+    public int checkBookTrades() {
+        StandInVillager villager = villagers[nextVillager()];
+        long[] disallowed = planner.getTables().newEnchantmentSet();
+        int changed = 0;
+
+        for (MerchantRecipe recipe : villager.recipes) {
+            StandInBookMeta meta = StandInVillager.bookMeta(recipe);
+
+            if(meta == null) {
+                continue;
+            }
+
+            plan.clear();
+
+            for (int i = 0; i < meta.ids.length; i++) {
+                plan.add(meta.ids[i], meta.levels[i]);
+            }
+
+            boolean emeraldPrice = recipe.getIngredients().getFirst().getType() == Material.EMERALD;
+
+            if(planner.plan(plan, villager.level, disallowed, emeraldPrice, random)) {
+                changed++;
+            }
+        }
+
+        return changed;
+    }
+
+    @Benchmark
+    public void clampReplenishedPrice(Blackhole blackhole) {
+        List<MerchantRecipe> recipes = villagers[nextVillager()].recipes;
+
+        for (MerchantRecipe recipe : recipes) {
+            recipe.setUses(-random.nextInt(16));
+            blackhole.consume(TradeProcessor.clampReplenishedPrice(recipe, tradeRules,
+                                                                   replenishFloor(recipe, bookCell(recipe))));
+        }
+    }
+
+    //Restock of a villager with trade tags, excluding the persistent data read
+    @Benchmark
+    public void clampReplenishedPriceTagged(Blackhole blackhole) {
+        int villager = nextVillager();
+        List<MerchantRecipe> recipes = villagers[villager].recipes;
+
+        for (int pos = 0; pos < recipes.size(); pos++) {
+            MerchantRecipe recipe = recipes.get(pos);
+            int tag = TradeTags.get(tags[villager], 0, pos, recipe);
+
+            recipe.setUses(-random.nextInt(16));
+
+            if(tag != TradeTags.NONE) {
+                blackhole.consume(TradeProcessor.clampReplenishedPrice(recipe, TradeTags.getMinPrice(tag)));
+            }
+        }
+    }
+}
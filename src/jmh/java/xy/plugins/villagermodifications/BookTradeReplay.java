@@ -0,0 +1,114 @@
+package xy.plugins.villagermodifications;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Replays the rolls for a single book trade, as made with {@code enchantments.random: villager}.
+ *
+ * <p>Usage: {@code ./gradlew replay -Preplay.args="<config.yml> <villager uuid> <recipe index> <villager level>
+ * <enchantment:level[,enchantment:level]> [offered enchantment[,offered enchantment]] [--catalog <audit log>]"}</p>
+ *
+ * <p>Offered enchantments are those on the villager's earlier book trades, which may not be picked as replacements.
+ * Rolls pick enchantments by catalog id, so unless the server has exactly the vanilla enchantments,
+ * {@code --catalog} should name its audit directory or a segment, to use the enchantment order in its header.</p>
+ */
+public final class BookTradeReplay {
+    private BookTradeReplay() {
+    }
+
+    public static void main(String[] args) {
+        List<String> arguments = new ArrayList<>();
+        File auditLog = null;
+
+        for (int i = 0; i < args.length; i++) {
+            if(args[i].equals("--catalog") && i + 1 < args.length) {
+                auditLog = new File(args[++i]);
+            } else {
+                arguments.add(args[i]);
+            }
+        }
+
+        if(arguments.size() < 5) {
+            System.err.println("Usage: BookTradeReplay <config.yml> <villager uuid> <recipe index> <villager level> "
+                                       + "<enchantment:level[,enchantment:level]> [offered enchantment[,offered enchantment]] "
+                                       + "[--catalog <audit log>]");
+            System.exit(1);
+        }
+
+        YamlConfiguration config = YamlConfiguration.loadConfiguration(new File(arguments.get(0)));
+        UUID villagerId = UUID.fromString(arguments.get(1));
+        int recipeIndex = Integer.parseInt(arguments.get(2));
+        int villagerLevel = Integer.parseInt(arguments.get(3));
+        EnchantmentCatalog catalog;
+
+        try {
+            catalog = auditLog != null ? StandInEnchantments.fromAuditLog(auditLog) : StandInEnchantments.catalog();
+        } catch (IOException e) {
+            System.err.println("Failed to read the enchantment catalog from " + auditLog + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        EnchantmentTables tables = EnchantmentTables.compile(
+                config.getConfigurationSection("enchantments.min-villager-levels"),
+                config.getConfigurationSection("enchantments.pricing"), catalog, StandInConfigs.LOGGER);
+        BookTradePlanner planner = new BookTradePlanner(tables, config.getBoolean("enchantments.limit-max-trades", false),
+                                                        config.getBoolean("enchantments.limit-min-prices", false));
+        long salt = config.getLong("enchantments.random-salt", 0);
+
+        BookPlan plan = new BookPlan();
+        long[] disallowed = tables.newEnchantmentSet();
+
+        for (String enchantment : arguments.get(4).split(",")) {
+            String[] parts = enchantment.split(":");
+            plan.add(id(catalog, parts[0]), parts.length > 1 ? Integer.parseInt(parts[1]) : 1);
+        }
+
+        if(arguments.size() > 5) {
+            for (String offered : arguments.get(5).split(",")) {
+                EnchantmentTables.add(disallowed, id(catalog, offered));
+            }
+        }
+
+        boolean changed = planner.plan(plan, villagerLevel, disallowed, true,
+                                       VillagerRandom.forRecipe(salt, villagerId, recipeIndex));
+
+        System.out.printf("Seed %016x%n", VillagerRandom.seed(salt, villagerId, recipeIndex));
+
+        for (int i = 0; i < plan.size; i++) {
+            String action = switch (plan.actions[i]) {
+                case BookPlan.REPLACED -> "replaced";
+                case BookPlan.LEVEL_CHANGED -> "level changed";
+                case BookPlan.NO_REPLACEMENT -> "no replacement";
+                default -> "kept";
+            };
+
+            System.out.printf("%s %d -> %s %d (%s)%n", catalog.key(plan.ids[i]), plan.levels[i],
+                              catalog.key(plan.newIds[i]), plan.newLevels[i], action);
+        }
+
+        if(!changed) {
+            System.out.println("Trade unchanged");
+            return;
+        }
+
+        System.out.println("Max uses " + (plan.maxUses != BookPlan.KEEP ? plan.maxUses : "unchanged"));
+        System.out.println("Price " + (plan.price != BookPlan.KEEP ? plan.price : "unchanged"));
+    }
+
+    private static int id(EnchantmentCatalog catalog, String key) {
+        int id = catalog.id(key.replace("minecraft:", ""));
+
+        if(id < 0) {
+            throw new IllegalArgumentException("Unknown enchantment " + key);
+        }
+
+        return id;
+    }
+}
@@ -0,0 +1,350 @@
+package xy.plugins.villagermodifications;
+
+import org.bukkit.Material;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.inventory.MerchantRecipe;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.IntStream;
+
+/**
+ * Headless simulator for tuning config.yml. Runs the plugin's enchanted book rewriting, trade rules and restock
+ * clamping over synthetic librarians levelling from 1 to 5, and reports what players end up being offered at each
+ * villager level.
+ *
+ * <p>Work is split over a fork-join pool, with each task splitting its random generator before forking,
+ * so results for a given seed are identical regardless of core count or scheduling.</p>
+ *
+ * <p>Usage: {@code ./gradlew simulate -Psim.args="<config.yml> [villagers] [seed] [--catalog <audit log>]"}</p>
+ *
+ * <p>The vanilla enchantments are simulated unless {@code --catalog} names a server's audit directory or segment,
+ * in which case the enchantments and their order are read from its header.</p>
+ */
+public final class EconomySimulator {
+    private static final int LEAF_SIZE = 16384;
+    private static final int MAX_PRICE = 127;
+    private static final int MAX_USES = 31;
+    private static final int LEVEL_STRIDE = EnchantmentTables.LEVEL_STRIDE;
+
+    //Vanilla librarian trade pool size and number of trades picked from it at each level, where the pool has a book
+    private static final int[] POOL_SIZES = {0, 3, 3, 3, 4, 1};
+    private static final int[] POOL_TRADES = {0, 2, 2, 2, 2, 0}; //Level 5 only offers a name tag
+
+    private final EnchantmentCatalog catalog;
+    private final EnchantmentTables tables;
+    private final BookTradePlanner planner;
+    private final TradeRuleTable tradeRules;
+    private final boolean limitMinPrices;
+    private final int[] tradeable;
+
+    private EconomySimulator(YamlConfiguration config, EnchantmentCatalog catalog) {
+        this.catalog = catalog;
+        limitMinPrices = config.getBoolean("enchantments.limit-min-prices", false);
+
+        tables = EnchantmentTables.compile(config.getConfigurationSection("enchantments.min-villager-levels"),
+                                           config.getConfigurationSection("enchantments.pricing"), catalog,
+                                           StandInConfigs.LOGGER);
+
+        planner = new BookTradePlanner(tables, config.getBoolean("enchantments.limit-max-trades", false), limitMinPrices);
+        tradeRules = TradeRuleTable.compile(config, catalog, StandInConfigs.LOGGER);
+
+        //Enchantments librarians can offer in vanilla
+        tradeable = IntStream.range(0, catalog.size())
+                .filter(id -> !catalog.key(id).equals("soul_speed") && !catalog.key(id).equals("swift_sneak"))
+                .toArray();
+    }
+
+    public static void main(String[] args) {
+        List<String> arguments = new ArrayList<>();
+        File auditLog = null;
+
+        for (int i = 0; i < args.length; i++) {
+            if(args[i].equals("--catalog") && i + 1 < args.length) {
+                auditLog = new File(args[++i]);
+            } else {
+                arguments.add(args[i]);
+            }
+        }
+
+        if(arguments.isEmpty()) {
+            System.err.println("Usage: EconomySimulator <config.yml> [villagers] [seed] [--catalog <audit log>]");
+            System.exit(1);
+        }
+
+        File configFile = new File(arguments.get(0));
+
+        if(!configFile.isFile()) {
+            System.err.println("Config " + configFile + " not found");
+            System.exit(1);
+        }
+
+        int villagers = arguments.size() > 1 ? Integer.parseInt(arguments.get(1).replace("_", "")) : 1_000_000;
+        long seed = arguments.size() > 2 ? Long.parseLong(arguments.get(2)) : 1;
+        EnchantmentCatalog catalog;
+
+        try {
+            catalog = auditLog != null ? StandInEnchantments.fromAuditLog(auditLog) : StandInEnchantments.catalog();
+        } catch (IOException e) {
+            System.err.println("Failed to read the enchantment catalog from " + auditLog + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        EconomySimulator simulator = new EconomySimulator(YamlConfiguration.loadConfiguration(configFile), catalog);
+        ForkJoinPool pool = new ForkJoinPool();
+
+        long start = System.nanoTime();
+        Stats stats = pool.invoke(new SimulationTask(simulator, 0, villagers, new SplittableRandom(seed)));
+        long elapsed = System.nanoTime() - start;
+
+        pool.shutdown();
+
+        System.out.printf("Simulated %,d librarians (seed %d) on %d threads in %.2fs%n%n",
+                          villagers, seed, pool.getParallelism(), elapsed / 1e9);
+        stats.print(simulator.catalog);
+    }
+
+    //Simulates a single librarian levelling from 1 to 5, checking its trades after each level up
+    private void simulateVillager(SplittableRandom random, BookPlan plan, long[] disallowed, Stats stats) {
+        Arrays.fill(disallowed, 0);
+
+        for (int villagerLevel = EnchantmentTables.MIN_VILLAGER_LEVEL; villagerLevel <= EnchantmentTables.MAX_VILLAGER_LEVEL; villagerLevel++) {
+            if(random.nextInt(POOL_SIZES[villagerLevel]) >= POOL_TRADES[villagerLevel]) {
+                continue;
+            }
+
+            //Vanilla book offer
+            int id = tradeable[random.nextInt(tradeable.length)];
+            int level = 1 + random.nextInt(catalog.maxLevel(id));
+            int price = 2 + random.nextInt(5 + level * 10) + 3 * level;
+
+            if(catalog.isTreasure(id)) {
+                price *= 2;
+            }
+
+            price = Math.min(price, 64);
+
+            plan.clear();
+            plan.add(id, level);
+
+            int maxUses = 12;
+
+            if(planner.plan(plan, villagerLevel, disallowed, true, random)) {
+                id = plan.newIds[0];
+                level = plan.newLevels[0];
+                maxUses = plan.maxUses != BookPlan.KEEP ? plan.maxUses : maxUses;
+                price = plan.price != BookPlan.KEEP ? plan.price : price;
+            }
+
+            TradeRule rule = tradeRules.findSellingBook(id, level);
+
+            if(rule != null) {
+                MerchantRecipe recipe = new MerchantRecipe(new StandInItemStack(Material.ENCHANTED_BOOK, 1, null), maxUses);
+                recipe.addIngredient(new StandInItemStack(Material.EMERALD, price, null));
+                recipe.addIngredient(new StandInItemStack(Material.BOOK, 1, null));
+
+                recipe = rule.apply(recipe);
+                price = recipe.getIngredients().getFirst().getAmount();
+                maxUses = recipe.getMaxUses();
+            }
+
+            float floor = limitMinPrices ? tables.getReplenishFloor(EnchantmentTables.cell(id, level)) : 0;
+            int minPrice = TradeProcessor.getMinReplenishPrice(price, floor, rule);
+
+            stats.record(plan, villagerLevel, id, level, price, Math.min(price, minPrice), maxUses);
+        }
+    }
+
+    private static final class SimulationTask extends RecursiveTask<Stats> {
+        private final EconomySimulator simulator;
+        private final int start;
+        private final int end;
+        private final SplittableRandom random;
+
+        SimulationTask(EconomySimulator simulator, int start, int end, SplittableRandom random) {
+            this.simulator = simulator;
+            this.start = start;
+            this.end = end;
+            this.random = random;
+        }
+
+        @Override
+        protected Stats compute() {
+            if(end - start > LEAF_SIZE) {
+                int mid = (start + end) >>> 1;
+                SimulationTask right = new SimulationTask(simulator, mid, end, random.split());
+
+                right.fork();
+
+                Stats stats = new SimulationTask(simulator, start, mid, random).compute();
+                stats.merge(right.join());
+
+                return stats;
+            }
+
+            Stats stats = new Stats(simulator.catalog.size());
+            BookPlan plan = new BookPlan();
+            long[] disallowed = simulator.planner.getTables().newEnchantmentSet();
+
+            for (int i = start; i < end; i++) {
+                simulator.simulateVillager(random, plan, disallowed, stats);
+            }
+
+            return stats;
+        }
+    }
+
+    //Counts indexed by villager level
+    private static final class Stats {
+        private static final int LEVELS = EnchantmentTables.MAX_VILLAGER_LEVEL + 1;
+
+        private final long[] books = new long[LEVELS];
+        private final long[] replaced = new long[LEVELS];
+        private final long[] levelChanged = new long[LEVELS];
+        private final long[] unreplaceable = new long[LEVELS];
+        private final long[][] enchantments; //[villager level][id * LEVEL_STRIDE + level]
+        private final long[][] prices = new long[LEVELS][MAX_PRICE + 1];
+        private final long[][] minPrices = new long[LEVELS][MAX_PRICE + 1];
+        private final long[][] maxUses = new long[LEVELS][MAX_USES + 1];
+
+        Stats(int enchantments) {
+            this.enchantments = new long[LEVELS][enchantments * LEVEL_STRIDE];
+        }
+
+        void record(BookPlan plan, int villagerLevel, int id, int level, int price, int minPrice, int uses) {
+            books[villagerLevel]++;
+
+            switch (plan.actions[0]) {
+                case BookPlan.REPLACED -> replaced[villagerLevel]++;
+                case BookPlan.LEVEL_CHANGED -> levelChanged[villagerLevel]++;
+                case BookPlan.NO_REPLACEMENT -> unreplaceable[villagerLevel]++;
+                default -> {
+                }
+            }
+
+            enchantments[villagerLevel][id * LEVEL_STRIDE + Math.min(level, LEVEL_STRIDE - 1)]++;
+            prices[villagerLevel][Math.clamp(price, 0, MAX_PRICE)]++;
+            minPrices[villagerLevel][Math.clamp(minPrice, 0, MAX_PRICE)]++;
+            maxUses[villagerLevel][Math.clamp(uses, 0, MAX_USES)]++;
+        }
+
+        void merge(Stats other) {
+            for (int vl = 0; vl < LEVELS; vl++) {
+                books[vl] += other.books[vl];
+                replaced[vl] += other.replaced[vl];
+                levelChanged[vl] += other.levelChanged[vl];
+                unreplaceable[vl] += other.unreplaceable[vl];
+                add(enchantments[vl], other.enchantments[vl]);
+                add(prices[vl], other.prices[vl]);
+                add(minPrices[vl], other.minPrices[vl]);
+                add(maxUses[vl], other.maxUses[vl]);
+            }
+        }
+
+        private static void add(long[] target, long[] values) {
+            for (int i = 0; i < target.length; i++) {
+                target[i] += values[i];
+            }
+        }
+
+        void print(EnchantmentCatalog catalog) {
+            for (int vl = EnchantmentTables.MIN_VILLAGER_LEVEL; vl < LEVELS; vl++) {
+                long total = books[vl];
+
+                if(total == 0) {
+                    continue;
+                }
+
+                System.out.printf("Villager level %d: %,d books, %.1f%% replaced, %.1f%% level changed, %.1f%% without replacement%n",
+                                  vl, total, percent(replaced[vl], total), percent(levelChanged[vl], total),
+                                  percent(unreplaceable[vl], total));
+                System.out.println("  Price               " + summary(prices[vl]));
+                System.out.println("  Effective min price " + summary(minPrices[vl]));
+
+                StringBuilder uses = new StringBuilder("  Max uses           ");
+
+                for (int i = 0; i <= MAX_USES; i++) {
+                    if(maxUses[vl][i] > 0) {
+                        uses.append(String.format(" %d: %.1f%%", i, percent(maxUses[vl][i], total)));
+                    }
+                }
+
+                System.out.println(uses);
+
+                long[] levels = enchantments[vl];
+
+                IntStream.range(0, catalog.size())
+                        .filter(id -> count(levels, id) > 0)
+                        .boxed()
+                        .sorted(Comparator.comparingLong((Integer id) -> count(levels, id)).reversed())
+                        .forEach(id -> {
+                            StringBuilder line = new StringBuilder(String.format("    %-22s %5.1f%% ", catalog.key(id),
+                                                                                 percent(count(levels, id), total)));
+
+                            for (int level = 1; level < LEVEL_STRIDE; level++) {
+                                long count = levels[id * LEVEL_STRIDE + level];
+
+                                if(count > 0) {
+                                    line.append(String.format(" %d: %.1f%%", level, percent(count, count(levels, id))));
+                                }
+                            }
+
+                            System.out.println(line);
+                        });
+
+                System.out.println();
+            }
+        }
+
+        private static long count(long[] levels, int id) {
+            long count = 0;
+
+            for (int level = 0; level < LEVEL_STRIDE; level++) {
+                count += levels[id * LEVEL_STRIDE + level];
+            }
+
+            return count;
+        }
+
+        private static double percent(long count, long total) {
+            return total > 0 ? count * 100.0 / total : 0;
+        }
+
+        private static String summary(long[] histogram) {
+            long total = Arrays.stream(histogram).sum();
+            double sum = 0;
+
+            for (int i = 0; i < histogram.length; i++) {
+                sum += (double) i * histogram[i];
+            }
+
+            return String.format("min %d, p10 %d, p50 %d, p90 %d, max %d, mean %.1f",
+                                 percentile(histogram, total, 0), percentile(histogram, total, 0.1),
+                                 percentile(histogram, total, 0.5), percentile(histogram, total, 0.9),
+                                 percentile(histogram, total, 1), sum / total);
+        }
+
+        private static int percentile(long[] histogram, long total, double fraction) {
+            long target = Math.max(1, (long) Math.ceil(total * fraction));
+            long seen = 0;
+
+            for (int i = 0; i < histogram.length; i++) {
+                seen += histogram[i];
+
+                if(seen >= target) {
+                    return i;
+                }
+            }
+
+            return histogram.length - 1;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package xy.plugins.villagermodifications;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Level range lookups and enchantment picking, done for every disallowed book enchantment.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EnchantmentTablesBenchmark {
+    @Param({"1", "3", "5"})
+    public int villagerLevel;
+
+    //Number of enchantments already offered by the villager
+    @Param({"0", "8"})
+    public int offered;
+
+    private EnchantmentTables tables;
+    private long[] disallowed;
+    private SplittableRandom random;
+
+    @Setup
+    public void setup() {
+        random = new SplittableRandom(23);
+        EnchantmentCatalog catalog = StandInEnchantments.catalog();
+
+        tables = EnchantmentTables.compile(StandInConfigs.minVillagerLevels(catalog, random), null, catalog,
+                                           StandInConfigs.LOGGER);
+        disallowed = tables.newEnchantmentSet();
+
+        for (int i = 0; i < offered; i++) {
+            EnchantmentTables.add(disallowed, random.nextInt(catalog.size()));
+        }
+    }
+
+    @Benchmark
+    public void getLevelRange(Blackhole blackhole) {
+        for (int id = 0; id < tables.getCatalog().size(); id++) {
+            blackhole.consume(tables.getLevelRange(id, villagerLevel));
+        }
+    }
+
+    @Benchmark
+    public int pickEnchantment() {
+        return tables.pickEnchantment(villagerLevel, disallowed, random);
+    }
+}
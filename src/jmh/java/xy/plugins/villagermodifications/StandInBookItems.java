@@ -0,0 +1,63 @@
+package xy.plugins.villagermodifications;
+
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.Arrays;
+
+/**
+ * Reads and writes book enchantments through the {@link StandInBookMeta} of {@link StandInItemStack}s.
+ * Rewritten books are new stand-ins, as their meta is immutable.
+ */
+final class StandInBookItems implements BookItems {
+    @Override
+    public void read(ItemStack book, BookPlan plan) {
+        StandInBookMeta meta = bookMeta(book);
+
+        for (int i = 0; meta != null && i < meta.ids.length; i++) {
+            plan.add(meta.ids[i], meta.levels[i]);
+        }
+    }
+
+    @Override
+    public void addTo(ItemStack book, long[] enchantments) {
+        StandInBookMeta meta = bookMeta(book);
+
+        for (int i = 0; meta != null && i < meta.ids.length; i++) {
+            if(meta.ids[i] >= 0) {
+                EnchantmentTables.add(enchantments, meta.ids[i]);
+            }
+        }
+    }
+
+    @Override
+    public int getBookCell(ItemStack item) {
+        StandInBookMeta meta = bookMeta(item);
+
+        if(item.getType() != Material.ENCHANTED_BOOK || meta == null) {
+            return EnchantmentTables.NO_BOOK;
+        }
+
+        int id = -1;
+        int level = 0;
+
+        for (int i = 0; i < meta.ids.length; i++) {
+            if(meta.levels[i] > level) {
+                id = meta.ids[i];
+                level = meta.levels[i];
+            }
+        }
+
+        return EnchantmentTables.cell(id, level);
+    }
+
+    @Override
+    public ItemStack write(ItemStack book, BookPlan plan) {
+        return new StandInItemStack(Material.ENCHANTED_BOOK, book.getAmount(), new StandInBookMeta(
+                Arrays.copyOf(plan.newIds, plan.size), Arrays.copyOf(plan.newLevels, plan.size)));
+    }
+
+    private static StandInBookMeta bookMeta(ItemStack item) {
+        return item instanceof StandInItemStack standIn ? standIn.bookMeta : null;
+    }
+}
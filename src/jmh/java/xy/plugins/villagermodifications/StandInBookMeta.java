@@ -0,0 +1,15 @@
+package xy.plugins.villagermodifications;
+
+/**
+ * Stand-in for the stored enchantments of an {@link org.bukkit.inventory.meta.EnchantmentStorageMeta},
+ * as catalog ids and levels in storage order.
+ */
+final class StandInBookMeta {
+    final int[] ids;
+    final int[] levels;
+
+    StandInBookMeta(int[] ids, int[] levels) {
+        this.ids = ids;
+        this.levels = levels;
+    }
+}
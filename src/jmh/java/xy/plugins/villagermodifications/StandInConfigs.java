@@ -0,0 +1,69 @@
+package xy.plugins.villagermodifications;
+
+import org.bukkit.Material;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.util.SplittableRandom;
+import java.util.logging.Logger;
+
+/**
+ * Generates config.yml sections of a given size for the benchmarks.
+ */
+final class StandInConfigs {
+    static final Logger LOGGER = Logger.getLogger("VillagerModifications-jmh");
+
+    private StandInConfigs() {
+    }
+
+    /**
+     * Builds selling and buying rules for the first materialRules item materials, in both sections,
+     * plus bookRules enchanted book rules spread over the catalog.
+     */
+    static YamlConfiguration tradeRules(EnchantmentCatalog catalog, int materialRules, int bookRules, SplittableRandom random) {
+        YamlConfiguration config = new YamlConfiguration();
+        Material[] materials = Material.values();
+        int added = 0;
+
+        for (int i = 0; i < materials.length && added < materialRules; i++) {
+            Material material = materials[i];
+
+            if(material.isLegacy() || material.isAir()) {
+                continue;
+            }
+
+            rule(config.createSection("selling." + material.name()), random);
+            rule(config.createSection("buying." + material.name()), random);
+            added++;
+        }
+
+        for (int i = 0; i < bookRules; i++) {
+            int id = i % catalog.size();
+            int level = 1 + (i / catalog.size()) % catalog.maxLevel(id);
+
+            rule(config.createSection("selling." + catalog.key(id) + "_" + level), random);
+        }
+
+        return config;
+    }
+
+    /**
+     * Builds a min-villager-levels section with a random minimum for every enchantment in the catalog.
+     */
+    static ConfigurationSection minVillagerLevels(EnchantmentCatalog catalog, SplittableRandom random) {
+        YamlConfiguration config = new YamlConfiguration();
+
+        for (int id = 0; id < catalog.size(); id++) {
+            config.set(catalog.key(id), 1 + random.nextInt(EnchantmentTables.MAX_VILLAGER_LEVEL));
+        }
+
+        return config;
+    }
+
+    private static void rule(ConfigurationSection section, SplittableRandom random) {
+        section.set("change", true);
+        section.set("uses", 4 + random.nextInt(12));
+        section.set("item1.minCost", 1 + random.nextInt(8));
+        section.set("item1.cost", 2 + random.nextInt(30));
+    }
+}
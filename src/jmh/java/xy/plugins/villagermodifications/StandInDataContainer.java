@@ -0,0 +1,52 @@
+package xy.plugins.villagermodifications;
+
+import org.bukkit.NamespacedKey;
+import org.bukkit.persistence.PersistentDataContainer;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stand-in for an entity's {@link PersistentDataContainer}, holding values in a map by key.
+ * Arrays are copied on the way in and out, as the server's container stores them as tags.
+ * Methods the trade state doesn't use throw {@link UnsupportedOperationException}.
+ */
+final class StandInDataContainer {
+    private StandInDataContainer() {
+    }
+
+    static PersistentDataContainer create() {
+        Map<NamespacedKey, Object> values = new HashMap<>();
+
+        return (PersistentDataContainer) Proxy.newProxyInstance(
+                PersistentDataContainer.class.getClassLoader(), new Class<?>[] {PersistentDataContainer.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "set" -> {
+                        values.put((NamespacedKey) args[0], copy(args[2]));
+                        yield null;
+                    }
+                    case "get" -> copy(values.get((NamespacedKey) args[0]));
+                    case "getOrDefault" -> values.containsKey((NamespacedKey) args[0])
+                            ? copy(values.get((NamespacedKey) args[0])) : args[2];
+                    case "has" -> values.containsKey((NamespacedKey) args[0]);
+                    case "remove" -> {
+                        values.remove((NamespacedKey) args[0]);
+                        yield null;
+                    }
+                    case "isEmpty" -> values.isEmpty();
+                    case "equals" -> proxy == args[0];
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "toString" -> "StandInDataContainer" + values.keySet();
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    private static Object copy(Object value) {
+        if(value instanceof int[] array) {
+            return array.clone();
+        }
+
+        return value instanceof long[] array ? array.clone() : value;
+    }
+}
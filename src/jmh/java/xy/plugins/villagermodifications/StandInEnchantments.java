@@ -0,0 +1,112 @@
+package xy.plugins.villagermodifications;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Stand-in for the server's enchantment registry, with the vanilla 1.20.6 enchantments in registry order.
+ */
+final class StandInEnchantments {
+    private static final Object[][] VANILLA = {
+            {"protection", 4, false},
+            {"fire_protection", 4, false},
+            {"feather_falling", 4, false},
+            {"blast_protection", 4, false},
+            {"projectile_protection", 4, false},
+            {"respiration", 3, false},
+            {"aqua_affinity", 1, false},
+            {"thorns", 3, false},
+            {"depth_strider", 3, false},
+            {"frost_walker", 2, true},
+            {"binding_curse", 1, true},
+            {"soul_speed", 3, true},
+            {"swift_sneak", 3, true},
+            {"sharpness", 5, false},
+            {"smite", 5, false},
+            {"bane_of_arthropods", 5, false},
+            {"knockback", 2, false},
+            {"fire_aspect", 2, false},
+            {"looting", 3, false},
+            {"sweeping_edge", 3, false},
+            {"efficiency", 5, false},
+            {"silk_touch", 1, false},
+            {"unbreaking", 3, false},
+            {"fortune", 3, false},
+            {"power", 5, false},
+            {"punch", 2, false},
+            {"flame", 1, false},
+            {"infinity", 1, false},
+            {"luck_of_the_sea", 3, false},
+            {"lure", 3, false},
+            {"loyalty", 3, false},
+            {"impaling", 5, false},
+            {"riptide", 3, false},
+            {"channeling", 1, false},
+            {"multishot", 1, false},
+            {"quick_charge", 3, false},
+            {"piercing", 4, false},
+            {"mending", 1, true},
+            {"vanishing_curse", 1, true},
+    };
+
+    private StandInEnchantments() {
+    }
+
+    static EnchantmentCatalog catalog() {
+        String[] keys = new String[VANILLA.length];
+        int[] maxLevels = new int[VANILLA.length];
+        boolean[] treasure = new boolean[VANILLA.length];
+
+        for (int id = 0; id < VANILLA.length; id++) {
+            keys[id] = (String) VANILLA[id][0];
+            maxLevels[id] = (Integer) VANILLA[id][1];
+            treasure[id] = (Boolean) VANILLA[id][2];
+        }
+
+        return EnchantmentCatalog.of(keys, maxLevels, treasure);
+    }
+
+    /**
+     * Builds a catalog in the order the server registered its enchantments, read from an audit log segment header,
+     * so ids match the ones the server rolled with. Max levels and treasure come from the vanilla table,
+     * enchantments missing from it get max level 1.
+     * @param file a segment, or an audit directory to use the newest segment in
+     */
+    static EnchantmentCatalog fromAuditLog(File file) throws IOException {
+        if(file.isDirectory()) {
+            File[] segments = file.listFiles((dir, name) -> name.endsWith(AuditLog.EXTENSION));
+
+            if(segments == null || segments.length == 0) {
+                throw new IOException("No audit log segments in " + file);
+            }
+
+            file = Arrays.stream(segments).max(Comparator.comparing(File::getName)).orElseThrow();
+        }
+
+        String[] keys;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            keys = AuditLog.readKeys(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+
+        int[] maxLevels = new int[keys.length];
+        boolean[] treasure = new boolean[keys.length];
+
+        for (int id = 0; id < keys.length; id++) {
+            maxLevels[id] = 1;
+
+            for (Object[] enchantment : VANILLA) {
+                if(enchantment[0].equals(keys[id])) {
+                    maxLevels[id] = (Integer) enchantment[1];
+                    treasure[id] = (Boolean) enchantment[2];
+                }
+            }
+        }
+
+        return EnchantmentCatalog.of(keys, maxLevels, treasure);
+    }
+}
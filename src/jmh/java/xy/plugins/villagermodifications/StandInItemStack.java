@@ -0,0 +1,46 @@
+package xy.plugins.villagermodifications;
+
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.EnchantmentStorageMeta;
+import org.bukkit.inventory.meta.ItemMeta;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+/**
+ * Item stack which works without a server. Enchanted books carry a {@link StandInBookMeta}, and getItemMeta returns an
+ * empty stand-in {@link EnchantmentStorageMeta}, as real enchantment instances need the server's registry.
+ */
+final class StandInItemStack extends ItemStack {
+    private static final EnchantmentStorageMeta EMPTY_BOOK_META = (EnchantmentStorageMeta) Proxy.newProxyInstance(
+            StandInItemStack.class.getClassLoader(), new Class<?>[] {EnchantmentStorageMeta.class},
+            (proxy, method, args) -> switch (method.getName()) {
+                case "getStoredEnchants", "getEnchants" -> Map.of();
+                case "hasStoredEnchants", "hasEnchants", "equals" -> false;
+                case "hashCode" -> 0;
+                default -> method.getReturnType().isInstance(proxy) ? proxy : null;
+            });
+
+    final StandInBookMeta bookMeta;
+
+    StandInItemStack(Material type, int amount, StandInBookMeta bookMeta) {
+        super(type, amount);
+        this.bookMeta = bookMeta;
+    }
+
+    @Override
+    public ItemMeta getItemMeta() {
+        return getType() == Material.ENCHANTED_BOOK ? EMPTY_BOOK_META : null;
+    }
+
+    @Override
+    public boolean hasItemMeta() {
+        return false;
+    }
+
+    @Override
+    public StandInItemStack clone() {
+        return new StandInItemStack(getType(), getAmount(), bookMeta);
+    }
+}
@@ -0,0 +1,79 @@
+package xy.plugins.villagermodifications;
+
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.MerchantRecipe;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.UUID;
+
+/**
+ * Stand-in for a {@link org.bukkit.entity.Villager}, holding just what the trade rewrite paths read.
+ * Recipes are real {@link MerchantRecipe}s built from {@link StandInItemStack}s.
+ */
+final class StandInVillager {
+    //Non book librarian trades, as (ingredient, ingredient amount, result, result amount)
+    private static final Object[][] LIBRARIAN_TRADES = {
+            {Material.PAPER, 24, Material.EMERALD, 1},
+            {Material.EMERALD, 9, Material.BOOKSHELF, 1},
+            {Material.BOOK, 4, Material.EMERALD, 1},
+            {Material.EMERALD, 1, Material.LANTERN, 1},
+            {Material.INK_SAC, 5, Material.EMERALD, 1},
+            {Material.EMERALD, 1, Material.GLASS, 4},
+            {Material.WRITABLE_BOOK, 2, Material.EMERALD, 1},
+            {Material.EMERALD, 5, Material.CLOCK, 1},
+            {Material.EMERALD, 4, Material.COMPASS, 1},
+            {Material.EMERALD, 20, Material.NAME_TAG, 1},
+    };
+
+    final UUID uuid;
+    final int level;
+    final List<MerchantRecipe> recipes;
+
+    private StandInVillager(UUID uuid, int level, List<MerchantRecipe> recipes) {
+        this.uuid = uuid;
+        this.level = level;
+        this.recipes = recipes;
+    }
+
+    /**
+     * Builds a librarian with two trades per level, up to its level. Roughly a third of trades are enchanted books
+     * with a random vanilla enchantment and level, priced in emeralds as vanilla would.
+     */
+    static StandInVillager librarian(EnchantmentCatalog catalog, int level, SplittableRandom random) {
+        List<MerchantRecipe> recipes = new ArrayList<>();
+
+        for (int i = 0; i < level * 2; i++) {
+            if (random.nextInt(3) == 0) {
+                int id = random.nextInt(catalog.size());
+                int enchantmentLevel = 1 + random.nextInt(catalog.maxLevel(id));
+                StandInBookMeta meta = new StandInBookMeta(new int[] {id}, new int[] {enchantmentLevel});
+
+                recipes.add(recipe(new StandInItemStack(Material.ENCHANTED_BOOK, 1, meta),
+                                   new StandInItemStack(Material.EMERALD, 2 + enchantmentLevel * 3 + random.nextInt(5 + enchantmentLevel * 10), null),
+                                   new StandInItemStack(Material.BOOK, 1, null)));
+            } else {
+                Object[] trade = LIBRARIAN_TRADES[random.nextInt(LIBRARIAN_TRADES.length)];
+
+                recipes.add(recipe(new StandInItemStack((Material) trade[2], (Integer) trade[3], null),
+                                   new StandInItemStack((Material) trade[0], (Integer) trade[1], null),
+                                   new StandInItemStack(Material.AIR, 0, null)));
+            }
+        }
+
+        return new StandInVillager(new UUID(random.nextLong(), random.nextLong()), level, recipes);
+    }
+
+    private static MerchantRecipe recipe(ItemStack result, ItemStack first, ItemStack second) {
+        MerchantRecipe recipe = new MerchantRecipe(result, 12);
+        recipe.addIngredient(first);
+        recipe.addIngredient(second);
+        return recipe;
+    }
+
+    static StandInBookMeta bookMeta(MerchantRecipe recipe) {
+        return recipe.getResult() instanceof StandInItemStack item ? item.bookMeta : null;
+    }
+}
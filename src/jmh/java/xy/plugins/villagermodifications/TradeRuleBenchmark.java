@@ -0,0 +1,104 @@
+package xy.plugins.villagermodifications;
+
+import org.bukkit.inventory.MerchantRecipe;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trade rule lookups, as done for every recipe on interaction and restock, and rule application.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TradeRuleBenchmark {
+    @Param({"10", "1000"})
+    public int materialRules;
+
+    @Param({"0", "200"})
+    public int bookRules;
+
+    private TradeRuleTable tradeRules;
+    private List<MerchantRecipe> recipes;
+    private List<MerchantRecipe> appliedRecipes; //Already rewritten by their rules, as seen when reprocessing
+    private int[] bookIds;
+    private int[] bookLevels;
+
+    @Setup
+    public void setup() {
+        SplittableRandom random = new SplittableRandom(11);
+        EnchantmentCatalog catalog = StandInEnchantments.catalog();
+
+        tradeRules = TradeRuleTable.compile(StandInConfigs.tradeRules(catalog, materialRules, bookRules, random),
+                                            catalog, StandInConfigs.LOGGER);
+        recipes = new ArrayList<>();
+
+        for (int i = 0; i < 50; i++) {
+            recipes.addAll(StandInVillager.librarian(catalog, 5, random).recipes);
+        }
+
+        bookIds = new int[recipes.size()];
+        bookLevels = new int[recipes.size()];
+
+        for (int i = 0; i < recipes.size(); i++) {
+            StandInBookMeta meta = StandInVillager.bookMeta(recipes.get(i));
+            bookIds[i] = meta != null ? meta.ids[0] : random.nextInt(catalog.size());
+            bookLevels[i] = meta != null ? meta.levels[0] : 1;
+        }
+
+        appliedRecipes = new ArrayList<>();
+
+        for (MerchantRecipe recipe : recipes) {
+            TradeRule rule = tradeRules.find(recipe);
+            appliedRecipes.add(rule != null ? rule.apply(recipe) : recipe);
+        }
+    }
+
+    @Benchmark
+    public void find(Blackhole blackhole) {
+        for (MerchantRecipe recipe : recipes) {
+            blackhole.consume(tradeRules.find(recipe));
+        }
+    }
+
+    @Benchmark
+    public void findSellingBook(Blackhole blackhole) {
+        for (int i = 0; i < bookIds.length; i++) {
+            blackhole.consume(tradeRules.findSellingBook(bookIds[i], bookLevels[i]));
+        }
+    }
+
+    @Benchmark
+    public void apply(Blackhole blackhole) {
+        for (MerchantRecipe recipe : recipes) {
+            TradeRule rule = tradeRules.find(recipe);
+            blackhole.consume(rule != null ? rule.apply(recipe) : recipe);
+        }
+    }
+
+    //Rules whose target already matches return the recipe unchanged, without allocating a replacement
+    @Benchmark
+    public void applyUnchanged(Blackhole blackhole) {
+        for (MerchantRecipe recipe : appliedRecipes) {
+            TradeRule rule = tradeRules.find(recipe);
+            blackhole.consume(rule != null ? rule.apply(recipe) : recipe);
+        }
+    }
+}
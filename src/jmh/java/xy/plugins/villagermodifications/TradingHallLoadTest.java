@@ -0,0 +1,298 @@
+package xy.plugins.villagermodifications;
+
+import org.bukkit.NamespacedKey;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.inventory.MerchantRecipe;
+import org.bukkit.persistence.PersistentDataContainer;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.random.RandomGenerator;
+
+/**
+ * Offline load test of a trading hall, run tick by tick on a simulated clock. Each tick players click villagers,
+ * villagers restock and villagers change career at the configured rates, and the work the interact, tradeReplenish
+ * and onCareerChange handlers do for them is timed and its allocation measured. Scenario work vanilla would do,
+ * such as generating trades, is excluded.
+ *
+ * <p>The handlers can't run without a server, so the {@link VillagerTradeState} and {@link TradeProcessor} they
+ * delegate to are run against stand-in villagers and persistent data containers, with the data reads and writes timed.
+ * Most clicks go to a small set of villagers, as players trading in a hall revisit the same few.
+ * The first ticks are discarded while the JIT warms up.</p>
+ *
+ * <p>Exits with status 1 if the 99th percentile tick time exceeds the budget, or any tick exceeds the max if set,
+ * failing the loadTest task.</p>
+ *
+ * <p>Usage: {@code ./gradlew loadTest --args="<config.yml> [options]"}, quoting paths containing spaces.
+ * Also run by {@code ./gradlew check -PloadTest}.</p>
+ * <ul>
+ *     <li>{@code --villagers <count>} villagers in the hall, default 2000</li>
+ *     <li>{@code --ticks <count>} measured ticks, default 6000</li>
+ *     <li>{@code --warmup <count>} ticks run before measuring, default 1200</li>
+ *     <li>{@code --clicks <rate>} player clicks per tick, default 4</li>
+ *     <li>{@code --restocks <rate>} villager restocks per tick, default 0.5</li>
+ *     <li>{@code --career-changes <rate>} career changes per tick, default 0.05</li>
+ *     <li>{@code --budget-ms <ms>} 99th percentile tick time allowed, default 1</li>
+ *     <li>{@code --max-ms <ms>} worst tick time allowed, default unlimited</li>
+ *     <li>{@code --seed <seed>}</li>
+ * </ul>
+ */
+public final class TradingHallLoadTest {
+    private static final long TICK_MILLIS = 50;
+    private static final double HOT_CLICKS = 0.8; //Fraction of clicks going to the hot villagers
+    private static final double HOT_VILLAGERS = 0.05;
+
+    private static final class HallVillager {
+        private final int entityId;
+        private final PersistentDataContainer data = StandInDataContainer.create(); //Kept across career changes
+        private StandInVillager villager;
+
+        private HallVillager(int entityId, StandInVillager villager) {
+            this.entityId = entityId;
+            this.villager = villager;
+        }
+    }
+
+    private final Settings settings;
+    private final EnchantmentCatalog catalog;
+    private final TradeProcessor processor = new TradeProcessor(new StandInBookItems(), new PluginMetrics());
+    private final VillagerTradeState tradeState =
+            new VillagerTradeState(key -> new NamespacedKey("villagermodifications", key));
+    private final InteractionCoalescer interactions = new InteractionCoalescer(4096);
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private int villagers = 2000;
+    private int ticks = 6000;
+    private int warmup = 1200;
+    private double clicks = 4;
+    private double restocks = 0.5;
+    private double careerChanges = 0.05;
+    private double budgetMillis = 1;
+    private double maxMillis = 0;
+    private long seed = 1;
+
+    //Counts for the measured ticks, reset after warmup
+    private long clicksProcessed;
+    private long clicksCoalesced;
+    private long booksRewritten;
+    private long restocksClamped;
+
+    private TradingHallLoadTest(YamlConfiguration config) {
+        catalog = StandInEnchantments.catalog();
+        settings = Settings.of(config, catalog, StandInConfigs.LOGGER);
+    }
+
+    public static void main(String[] args) {
+        File configFile = args.length > 0 && !args[0].startsWith("--") ? new File(args[0]) : null;
+
+        if(configFile == null || !configFile.isFile()) {
+            System.err.println("Usage: TradingHallLoadTest <config.yml> [--villagers <count>] [--ticks <count>] "
+                                       + "[--warmup <count>] [--clicks <rate>] [--restocks <rate>] "
+                                       + "[--career-changes <rate>] [--budget-ms <ms>] [--max-ms <ms>] [--seed <seed>]");
+            System.exit(1);
+        }
+
+        TradingHallLoadTest test = new TradingHallLoadTest(YamlConfiguration.loadConfiguration(configFile));
+
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--villagers" -> test.villagers = Integer.parseInt(args[++i].replace("_", ""));
+                case "--ticks" -> test.ticks = Math.max(1, Integer.parseInt(args[++i].replace("_", "")));
+                case "--warmup" -> test.warmup = Integer.parseInt(args[++i].replace("_", ""));
+                case "--clicks" -> test.clicks = Double.parseDouble(args[++i]);
+                case "--restocks" -> test.restocks = Double.parseDouble(args[++i]);
+                case "--career-changes" -> test.careerChanges = Double.parseDouble(args[++i]);
+                case "--budget-ms" -> test.budgetMillis = Double.parseDouble(args[++i]);
+                case "--max-ms" -> test.maxMillis = Double.parseDouble(args[++i]);
+                case "--seed" -> test.seed = Long.parseLong(args[++i]);
+                default -> {
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(1);
+                }
+            }
+        }
+
+        System.exit(test.run() ? 0 : 1);
+    }
+
+    private boolean run() {
+        SplittableRandom random = new SplittableRandom(seed);
+        HallVillager[] hall = new HallVillager[villagers];
+        int hot = Math.max(1, (int) (villagers * HOT_VILLAGERS));
+
+        for (int i = 0; i < villagers; i++) {
+            int level = 1 + random.nextInt(EnchantmentTables.MAX_VILLAGER_LEVEL);
+            hall[i] = new HallVillager(i + 1, StandInVillager.librarian(catalog, level, random));
+        }
+
+        long[] tickNanos = new long[ticks];
+        long[] tickBytes = new long[ticks];
+        long[] cost = new long[2]; //Nanos and bytes of the current tick
+
+        for (int tick = 0; tick < warmup + ticks; tick++) {
+            long now = tick * TICK_MILLIS;
+
+            if(tick == warmup) {
+                clicksProcessed = 0;
+                clicksCoalesced = 0;
+                booksRewritten = 0;
+                restocksClamped = 0;
+            }
+
+            cost[0] = 0;
+            cost[1] = 0;
+
+            for (int i = poisson(random, clicks); i > 0; i--) {
+                int index = random.nextDouble() < HOT_CLICKS ? random.nextInt(hot) : random.nextInt(villagers);
+                interact(hall[index], now, cost);
+            }
+
+            for (int i = poisson(random, restocks); i > 0; i--) {
+                replenish(hall[random.nextInt(villagers)], random, cost);
+            }
+
+            for (int i = poisson(random, careerChanges); i > 0; i--) {
+                HallVillager villager = hall[random.nextInt(villagers)];
+
+                villager.villager = StandInVillager.librarian(catalog, 1, random); //New trades, generated by vanilla
+                changeCareer(villager, cost);
+            }
+
+            if(tick >= warmup) {
+                tickNanos[tick - warmup] = cost[0];
+                tickBytes[tick - warmup] = cost[1];
+            }
+        }
+
+        return report(tickNanos, tickBytes);
+    }
+
+    private void interact(HallVillager villager, long now, long[] cost) {
+        long start = System.nanoTime();
+        long bytes = threads.getCurrentThreadAllocatedBytes();
+        boolean acquired = interactions.tryAcquire(villager.entityId, settings.getCoalesceWindowMillis(), now);
+
+        if(acquired) {
+            processTrades(villager);
+        }
+
+        cost[1] += threads.getCurrentThreadAllocatedBytes() - bytes;
+        cost[0] += System.nanoTime() - start;
+
+        if(acquired) {
+            clicksProcessed++;
+        } else {
+            clicksCoalesced++;
+        }
+    }
+
+    //As VillagerModifications.processTrades
+    private void processTrades(HallVillager villager) {
+        StandInVillager standIn = villager.villager;
+        TradeSnapshot snapshot = tradeState.snapshot(settings, villager.data, standIn.uuid, standIn.level,
+                                                     standIn.recipes, false);
+
+        if(snapshot == null) {
+            return;
+        }
+
+        TradeUpdate update = processor.compute(snapshot);
+        tradeState.apply(villager.data, update, (recipe, pos) -> standIn.recipes.set(pos, recipe));
+
+        for (BookChange change : update.bookChanges) {
+            if(change.rewritten) {
+                booksRewritten++;
+            }
+        }
+    }
+
+    //As VillagerModifications.tradeReplenish, for every trade of the villager
+    private void replenish(HallVillager villager, RandomGenerator random, long[] cost) {
+        List<MerchantRecipe> recipes = villager.villager.recipes;
+
+        for (MerchantRecipe recipe : recipes) {
+            recipe.setUses(-random.nextInt(16)); //Discount from vanilla's demand bonus
+
+            long start = System.nanoTime();
+            long bytes = threads.getCurrentThreadAllocatedBytes();
+            int tag = tradeState.getTradeTag(villager.data, settings.getGeneration(), recipe, recipes.size(),
+                                             recipes::get);
+            boolean clamped = processor.replenish(settings, recipe, tag);
+
+            cost[1] += threads.getCurrentThreadAllocatedBytes() - bytes;
+            cost[0] += System.nanoTime() - start;
+
+            if(clamped) {
+                restocksClamped++;
+            }
+        }
+    }
+
+    //As VillagerModifications.onCareerChange
+    private void changeCareer(HallVillager villager, long[] cost) {
+        long start = System.nanoTime();
+
+        tradeState.resetCareer(villager.data, villager.entityId, interactions);
+
+        cost[0] += System.nanoTime() - start;
+    }
+
+    private static int poisson(SplittableRandom random, double rate) {
+        double limit = Math.exp(-rate);
+        double product = random.nextDouble();
+        int count = 0;
+
+        while (product > limit) {
+            product *= random.nextDouble();
+            count++;
+        }
+
+        return count;
+    }
+
+    private boolean report(long[] tickNanos, long[] tickBytes) {
+        Arrays.sort(tickNanos);
+        Arrays.sort(tickBytes);
+
+        System.out.printf("Simulated %,d villagers for %,d ticks (%,d warmup), seed %d%n", villagers, ticks, warmup, seed);
+        System.out.printf("Per tick: %.2f clicks, %.2f restocks, %.3f career changes%n", clicks, restocks, careerChanges);
+        System.out.printf("Clicks processed %,d, coalesced %,d, books rewritten %,d, restocks clamped %,d%n%n",
+                          clicksProcessed, clicksCoalesced, booksRewritten, restocksClamped);
+
+        System.out.printf("%-12s %10s %10s %10s %10s%n", "", "p50", "p99", "max", "mean");
+        System.out.printf("%-12s %10.3f %10.3f %10.3f %10.3f%n", "tick ms", percentile(tickNanos, 0.5) / 1e6,
+                          percentile(tickNanos, 0.99) / 1e6, tickNanos[ticks - 1] / 1e6, mean(tickNanos) / 1e6);
+        System.out.printf("%-12s %10.1f %10.1f %10.1f %10.1f%n%n", "tick KiB", percentile(tickBytes, 0.5) / 1024.0,
+                          percentile(tickBytes, 0.99) / 1024.0, tickBytes[ticks - 1] / 1024.0, mean(tickBytes) / 1024.0);
+
+        boolean passed = true;
+
+        if(percentile(tickNanos, 0.99) > budgetMillis * 1e6) {
+            System.out.printf("FAILED: p99 tick time exceeds the %.3fms budget%n", budgetMillis);
+            passed = false;
+        }
+
+        if(maxMillis > 0 && tickNanos[ticks - 1] > maxMillis * 1e6) {
+            System.out.printf("FAILED: max tick time exceeds %.3fms%n", maxMillis);
+            passed = false;
+        }
+
+        if(passed) {
+            System.out.printf("Passed, p99 tick time within the %.3fms budget%n", budgetMillis);
+        }
+
+        return passed;
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(percentile * sorted.length) - 1)];
+    }
+
+    private static double mean(long[] values) {
+        return Arrays.stream(values).average().orElse(0);
+    }
+}
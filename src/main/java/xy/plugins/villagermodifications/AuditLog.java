@@ -0,0 +1,362 @@
+package xy.plugins.villagermodifications;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Persistent audit log of trade rewrites and restock price clamps, for investigating exploits after the fact.
+ *
+ * <p>Events are fixed size records written straight into memory mapped segment files, so recording is a slot claim
+ * and a few stores, with no locking or I/O on the calling thread. A background thread maps the next segment ahead of
+ * time, flushes full segments and deletes the oldest once there are more than the configured number.
+ * If a segment fills before its replacement is ready, events are dropped and counted rather than blocking.</p>
+ *
+ * <p>Each segment starts with a header holding the enchantment keys of the catalog, so ids can be resolved offline.
+ * Records with a zero type were never written, e.g. the unused end of a segment.</p>
+ */
+final class AuditLog {
+    static final byte ENCHANTMENT_REPLACED = 1;
+    static final byte LEVEL_CHANGED = 2;
+    static final byte PRICE_CHANGED = 3;
+    static final byte REPLENISH_CLAMPED = 4;
+
+    static final int NONE = -1;
+
+    static final int MAGIC = 0x564D4155; //"VMAU"
+    static final int VERSION = 1;
+    static final String EXTENSION = ".vmaudit";
+
+    //Header layout
+    static final int HEADER_RECORD_SIZE = 8;
+    static final int HEADER_SIZE = 12;
+    static final int HEADER_CREATED = 16;
+    static final int HEADER_KEY_COUNT = 24;
+    static final int HEADER_KEYS = 28; //Each key is a short length followed by UTF-8 bytes
+
+    //Record layout
+    static final int RECORD_SIZE = 64;
+    static final int TIME = 0;
+    static final int VILLAGER_MOST = 8;
+    static final int VILLAGER_LEAST = 16;
+    static final int RECIPE = 24;
+    static final int OLD_ENCHANTMENT = 28;
+    static final int NEW_ENCHANTMENT = 30;
+    static final int TYPE = 32;
+    static final int OLD_LEVEL = 33;
+    static final int NEW_LEVEL = 34;
+    static final int OLD_PRICE = 36;
+    static final int NEW_PRICE = 40;
+    static final int OLD_MAX_USES = 44;
+    static final int NEW_MAX_USES = 48;
+
+    private static final long FLUSH_INTERVAL_SECONDS = 5;
+    private static final long RETIRE_DELAY_SECONDS = 1; //Lets writers which claimed a slot before rotation finish
+
+    private static final class Segment {
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private final int headerSize;
+        private final int capacity;
+        private final AtomicInteger cursor = new AtomicInteger();
+
+        private Segment(File file, MappedByteBuffer buffer, int headerSize, int capacity) {
+            this.file = file;
+            this.buffer = buffer;
+            this.headerSize = headerSize;
+            this.capacity = capacity;
+        }
+    }
+
+    private final File directory;
+    private final Logger logger;
+    private final byte[] header;
+    private final int capacity;
+    private final int maxFiles;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "VillagerModifications audit log");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile Segment current;
+    private final AtomicReference<Segment> spare = new AtomicReference<>();
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private int nextSequence; //Only accessed from the background thread after open
+
+    private AuditLog(File directory, Logger logger, EnchantmentCatalog catalog, int capacity, int maxFiles) {
+        this.directory = directory;
+        this.logger = logger;
+        this.header = createHeader(catalog);
+        this.capacity = capacity;
+        this.maxFiles = maxFiles;
+    }
+
+    /**
+     * Maps the first segment, continuing the numbering of any existing segments in the directory.
+     * @param segmentBytes size of each segment file, rounded down to a whole number of records
+     */
+    static AuditLog open(File directory, Logger logger, EnchantmentCatalog catalog, long segmentBytes, int maxFiles)
+            throws IOException {
+        int capacity = Math.clamp(segmentBytes / RECORD_SIZE, 1024, Integer.MAX_VALUE / RECORD_SIZE - 1024);
+        AuditLog log = new AuditLog(directory, logger, catalog, capacity, Math.max(1, maxFiles));
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+
+        File[] existing = log.listSegments();
+        log.nextSequence = existing.length > 0 ? sequence(existing[existing.length - 1]) + 1 : 1;
+        log.current = log.createSegment();
+
+        log.executor.execute(log::prepareSpare);
+        log.executor.scheduleWithFixedDelay(log::flush, FLUSH_INTERVAL_SECONDS, FLUSH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+        return log;
+    }
+
+    /**
+     * Records an event. Enchantments are catalog ids, unused values should be {@link #NONE} or 0.
+     * Safe to call from any thread.
+     */
+    void record(byte type, UUID villager, int recipe, int oldEnchantment, int oldLevel, int newEnchantment,
+                int newLevel, int oldPrice, int newPrice, int oldMaxUses, int newMaxUses) {
+        Segment segment = current;
+
+        while (segment != null) {
+            int slot = segment.cursor.getAndIncrement();
+
+            if (slot < segment.capacity) {
+                //Absolute puts don't touch the buffer's position, so concurrent writers to different slots are safe
+                MappedByteBuffer buffer = segment.buffer;
+                int base = segment.headerSize + slot * RECORD_SIZE;
+
+                buffer.putLong(base + TIME, System.currentTimeMillis());
+                buffer.putLong(base + VILLAGER_MOST, villager.getMostSignificantBits());
+                buffer.putLong(base + VILLAGER_LEAST, villager.getLeastSignificantBits());
+                buffer.putInt(base + RECIPE, recipe);
+                buffer.putShort(base + OLD_ENCHANTMENT, (short) oldEnchantment);
+                buffer.putShort(base + NEW_ENCHANTMENT, (short) newEnchantment);
+                buffer.put(base + OLD_LEVEL, (byte) oldLevel);
+                buffer.put(base + NEW_LEVEL, (byte) newLevel);
+                buffer.putInt(base + OLD_PRICE, oldPrice);
+                buffer.putInt(base + NEW_PRICE, newPrice);
+                buffer.putInt(base + OLD_MAX_USES, oldMaxUses);
+                buffer.putInt(base + NEW_MAX_USES, newMaxUses);
+                buffer.put(base + TYPE, type); //Written last, marking the record as complete
+                recorded.increment();
+                return;
+            }
+
+            segment = rotate(segment);
+        }
+
+        dropped.increment();
+    }
+
+    //Swaps a full segment for the spare, returns the segment to retry with or null if there isn't one ready
+    private Segment rotate(Segment full) {
+        Segment latest = current;
+
+        if (latest != full) {
+            return latest; //Already rotated by another writer
+        }
+
+        Segment next = spare.getAndSet(null);
+
+        if (next == null) {
+            return null;
+        }
+
+        current = next;
+        submit(() -> {
+            prepareSpare();
+            executor.schedule(() -> retire(full), RETIRE_DELAY_SECONDS, TimeUnit.SECONDS);
+        });
+
+        return next;
+    }
+
+    long getRecorded() {
+        return recorded.sum();
+    }
+
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Flushes the current segment and stops the background thread. Events recorded afterwards are dropped.
+     */
+    void close() {
+        Segment last = current;
+        current = null;
+
+        submit(() -> {
+            if (last != null) {
+                last.buffer.force();
+            }
+
+            //The spare was never written to
+            Segment unused = spare.getAndSet(null);
+
+            if (unused != null && !unused.file.delete()) {
+                logger.warning("Failed to delete unused audit segment " + unused.file);
+            }
+        });
+        executor.shutdown();
+
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                logger.severe("Timed out waiting for audit log to close");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void submit(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException ignored) {
+            //Closing
+        }
+    }
+
+    private void prepareSpare() {
+        if (spare.get() != null || current == null) {
+            return;
+        }
+
+        try {
+            spare.set(createSegment());
+        } catch (IOException e) {
+            logger.severe("Failed to create audit segment: " + e);
+        }
+    }
+
+    private void flush() {
+        Segment segment = current;
+
+        if (segment != null) {
+            segment.buffer.force();
+        }
+    }
+
+    private void retire(Segment segment) {
+        segment.buffer.force();
+
+        File[] segments = listSegments();
+
+        //The newest two are the current segment and the spare
+        for (int i = 0; i < segments.length - maxFiles - 1; i++) {
+            if (!segments[i].delete()) {
+                logger.warning("Failed to delete old audit segment " + segments[i]);
+            }
+        }
+    }
+
+    private Segment createSegment() throws IOException {
+        File file = new File(directory, String.format("audit-%08d%s", nextSequence++, EXTENSION));
+        int headerSize = (header.length + RECORD_SIZE - 1) / RECORD_SIZE * RECORD_SIZE;
+
+        //Mapping past the end grows the file, new space reads as zeros
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                                                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                                                  headerSize + (long) capacity * RECORD_SIZE);
+
+            buffer.put(0, header);
+            buffer.putInt(HEADER_SIZE, headerSize);
+            buffer.putLong(HEADER_CREATED, System.currentTimeMillis());
+
+            return new Segment(file, buffer, headerSize, capacity);
+        }
+    }
+
+    //Segment files sorted oldest first
+    private File[] listSegments() {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith("audit-") && name.endsWith(EXTENSION));
+
+        if (files == null) {
+            return new File[0];
+        }
+
+        Arrays.sort(files, (a, b) -> Integer.compare(sequence(a), sequence(b)));
+        return files;
+    }
+
+    private static int sequence(File file) {
+        String name = file.getName();
+
+        try {
+            return Integer.parseInt(name.substring("audit-".length(), name.length() - EXTENSION.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static byte[] createHeader(EnchantmentCatalog catalog) {
+        int size = HEADER_KEYS;
+        byte[][] keys = new byte[catalog.size()][];
+
+        for (int id = 0; id < keys.length; id++) {
+            keys[id] = catalog.key(id).getBytes(StandardCharsets.UTF_8);
+            size += 2 + keys[id].length;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(size);
+
+        header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(0).putLong(0).putInt(keys.length);
+
+        for (byte[] key : keys) {
+            header.putShort((short) key.length).put(key);
+        }
+
+        return header.array();
+    }
+
+    /**
+     * Reads the enchantment keys from a segment header, indexed by catalog id.
+     * @throws IOException if the buffer doesn't start with a supported header
+     */
+    static String[] readKeys(ByteBuffer segment) throws IOException {
+        if (segment.limit() < HEADER_KEYS || segment.getInt(0) != MAGIC) {
+            throw new IOException("Not an audit log segment");
+        }
+
+        if (segment.getInt(4) != VERSION || segment.getInt(HEADER_RECORD_SIZE) != RECORD_SIZE) {
+            throw new IOException("Unsupported audit log version " + segment.getInt(4));
+        }
+
+        String[] keys = new String[segment.getInt(HEADER_KEY_COUNT)];
+        int position = HEADER_KEYS;
+
+        for (int id = 0; id < keys.length; id++) {
+            byte[] key = new byte[segment.getShort(position)];
+
+            segment.get(position + 2, key);
+            keys[id] = new String(key, StandardCharsets.UTF_8);
+            position += 2 + key.length;
+        }
+
+        return keys;
+    }
+}
@@ -0,0 +1,26 @@
+package xy.plugins.villagermodifications;
+
+/**
+ * A book trade the {@link BookTradePlanner} acted on, with the recipe's price and max uses before and after.
+ * Kept until the rewrite is applied to the villager, so metrics, trace and audit records are only written for
+ * rewrites which actually happen.
+ */
+final class BookChange {
+    final int recipeIndex;
+    final BookPlan plan;
+    final boolean rewritten; //Whether the recipe was replaced, price and max uses limits often leave it as it was
+    final int oldPrice;
+    final int price;
+    final int oldMaxUses;
+    final int maxUses;
+
+    BookChange(int recipeIndex, BookPlan plan, boolean rewritten, int oldPrice, int price, int oldMaxUses, int maxUses) {
+        this.recipeIndex = recipeIndex;
+        this.plan = plan;
+        this.rewritten = rewritten;
+        this.oldPrice = oldPrice;
+        this.price = price;
+        this.oldMaxUses = oldMaxUses;
+        this.maxUses = maxUses;
+    }
+}
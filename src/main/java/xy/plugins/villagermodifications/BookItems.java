@@ -0,0 +1,31 @@
+package xy.plugins.villagermodifications;
+
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * Reads and writes the stored enchantments of enchanted book items as {@link EnchantmentCatalog} ids,
+ * so {@link TradeProcessor} can run against items without a server.
+ */
+interface BookItems {
+    /**
+     * Adds each stored enchantment of an enchanted book to the plan.
+     */
+    void read(ItemStack book, BookPlan plan);
+
+    /**
+     * Adds the stored enchantments of an enchanted book to an {@link EnchantmentTables#newEnchantmentSet() enchantment set}.
+     */
+    void addTo(ItemStack book, long[] enchantments);
+
+    /**
+     * Returns the {@link EnchantmentTables#cell book cell} of an item's highest level stored enchantment,
+     * or {@link EnchantmentTables#NO_BOOK} if it isn't a known enchanted book.
+     */
+    int getBookCell(ItemStack item);
+
+    /**
+     * Applies the plan's replaced enchantments and level changes to a book, which the caller owns.
+     * @return the rewritten book, which may be the same instance
+     */
+    ItemStack write(ItemStack book, BookPlan plan);
+}
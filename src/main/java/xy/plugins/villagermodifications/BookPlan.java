@@ -0,0 +1,60 @@
+package xy.plugins.villagermodifications;
+
+import java.util.Arrays;
+
+/**
+ * The enchantments of a single enchanted book trade, as catalog ids, and what {@link BookTradePlanner} decided to do
+ * with each of them. Reusable, call {@link #clear()} before describing the next book.
+ */
+final class BookPlan {
+    static final byte KEPT = 0;
+    static final byte REPLACED = 1;
+    static final byte LEVEL_CHANGED = 2;
+    static final byte NO_REPLACEMENT = 3;
+
+    static final int KEEP = -1; //Price or max uses are left unchanged
+
+    int size;
+    int[] ids = new int[2]; //Original enchantment ids, -1 for enchantments missing from the catalog
+    int[] levels = new int[2];
+    int[] newIds = new int[2];
+    int[] newLevels = new int[2];
+    byte[] actions = new byte[2];
+
+    boolean changed;
+    int highestId; //Highest level enchantment after changes, used for generating price
+    int highestLevel;
+    int maxUses;
+    int price;
+
+    BookPlan() {
+        clear();
+    }
+
+    void clear() {
+        size = 0;
+        changed = false;
+        highestId = -1;
+        highestLevel = 0;
+        maxUses = KEEP;
+        price = KEEP;
+    }
+
+    void add(int id, int level) {
+        if(size == ids.length) {
+            int capacity = size << 1;
+            ids = Arrays.copyOf(ids, capacity);
+            levels = Arrays.copyOf(levels, capacity);
+            newIds = Arrays.copyOf(newIds, capacity);
+            newLevels = Arrays.copyOf(newLevels, capacity);
+            actions = Arrays.copyOf(actions, capacity);
+        }
+
+        ids[size] = id;
+        levels[size] = level;
+        newIds[size] = id;
+        newLevels[size] = level;
+        actions[size] = KEPT;
+        size++;
+    }
+}
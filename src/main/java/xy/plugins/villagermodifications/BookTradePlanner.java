@@ -0,0 +1,131 @@
+package xy.plugins.villagermodifications;
+
+import java.util.random.RandomGenerator;
+
+/**
+ * Decides how an enchanted book trade should be rewritten for a villager, working purely on enchantment ids so it
+ * has no dependency on the server. Enchantments not allowed at the villager level, or already offered by the villager,
+ * are replaced, and levels outside the allowed range are rerolled.
+ */
+final class BookTradePlanner {
+    private final EnchantmentTables tables;
+    private final boolean limitMaxTrades;
+    private final boolean limitMinPrices;
+    private final DemandPricing demandPricing; //Null if disabled
+
+    BookTradePlanner(EnchantmentTables tables, boolean limitMaxTrades, boolean limitMinPrices) {
+        this(tables, limitMaxTrades, limitMinPrices, null);
+    }
+
+    BookTradePlanner(EnchantmentTables tables, boolean limitMaxTrades, boolean limitMinPrices,
+                     DemandPricing demandPricing) {
+        this.tables = tables;
+        this.limitMaxTrades = limitMaxTrades;
+        this.limitMinPrices = limitMinPrices;
+        this.demandPricing = demandPricing;
+    }
+
+    EnchantmentTables getTables() {
+        return tables;
+    }
+
+    /**
+     * Plans changes to the book described by plan. Enchantments kept or added are added to the disallowed set.
+     * @param emeraldPrice whether the trade is priced in emeralds, and so should be repriced
+     * @return whether the trade needs to be rewritten
+     */
+    boolean plan(BookPlan plan, int villagerLevel, long[] disallowed, boolean emeraldPrice, RandomGenerator random) {
+        boolean changed = false; //Whether any enchantments were modified
+
+        for(int i = 0; i < plan.size; i++) {
+            int id = plan.ids[i];
+            int level = plan.levels[i];
+
+            //Enchantment isn't registered, nothing to compare it against
+            if(id < 0) {
+                keepHighest(plan, id, level);
+                continue;
+            }
+
+            //Enchantment type isn't allowed, replace with another
+            if(!tables.isAllowed(id, villagerLevel, disallowed)) {
+                //Get allowed enchantment and level
+                int replacementId = tables.pickEnchantment(villagerLevel, disallowed, random);
+
+                if(replacementId < 0) {
+                    plan.actions[i] = BookPlan.NO_REPLACEMENT;
+                    keepHighest(plan, id, level);
+                    continue;
+                }
+
+                int[] range = tables.getLevelRange(replacementId, villagerLevel);
+                int replacementLevel = range[random.nextInt(range.length)];
+
+                EnchantmentTables.add(disallowed, replacementId);
+                plan.actions[i] = BookPlan.REPLACED;
+                plan.newIds[i] = replacementId;
+                plan.newLevels[i] = replacementLevel;
+                changed = true;
+                keepHighest(plan, replacementId, replacementLevel);
+            } else {
+                int[] allowedLevels = tables.getLevelRange(id, villagerLevel);
+
+                //Enchantment level isn't allowed, change level
+                if(!contains(allowedLevels, level)) {
+                    int replacementLevel = allowedLevels[random.nextInt(allowedLevels.length)];
+
+                    plan.actions[i] = BookPlan.LEVEL_CHANGED;
+                    plan.newLevels[i] = replacementLevel;
+                    changed = true;
+                    keepHighest(plan, id, replacementLevel);
+                } else {
+                    keepHighest(plan, id, level);
+                }
+
+                EnchantmentTables.add(disallowed, id);
+            }
+        }
+
+        if((limitMaxTrades || limitMinPrices || demandPricing != null) && plan.size > 0) {
+            changed = true;
+        }
+
+        plan.changed = changed;
+
+        if(!changed) {
+            return false;
+        }
+
+        if(limitMaxTrades && plan.size > 0) {
+            plan.maxUses = tables.getMaxTrades(plan.newIds[0], plan.newLevels[0]);
+        }
+
+        //Generate new price to reflect level/type changes
+        if(emeraldPrice) {
+            plan.price = tables.getPrice(plan.highestId, plan.highestLevel, random);
+
+            if(demandPricing != null) {
+                plan.price = demandPricing.adjustPrice(EnchantmentTables.cell(plan.highestId, plan.highestLevel), plan.price);
+            }
+        }
+
+        return true;
+    }
+
+    private static void keepHighest(BookPlan plan, int id, int level) {
+        if(level > plan.highestLevel) {
+            plan.highestId = id;
+            plan.highestLevel = level;
+        }
+    }
+
+    private static boolean contains(int[] values, int value) {
+        for (int v : values) {
+            if(v == value) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,178 @@
+package xy.plugins.villagermodifications;
+
+import io.papermc.paper.threadedregions.scheduler.ScheduledTask;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Villager;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Whitelists, unwhitelists or reapplies trades for every loaded villager in an area. A global tick task dispatches
+ * a batch of villagers per tick to their own entity schedulers, where each is checked against the area and updated.
+ * Whitelist changes are persisted once, when the operation finishes, so are lost if the server stops before then.
+ */
+final class BulkVillagerOperation {
+    enum Action {
+        WHITELIST("whitelist"),
+        UNWHITELIST("unwhitelist"),
+        REAPPLY("reapply");
+
+        private final String name;
+
+        Action(String name) {
+            this.name = name;
+        }
+
+        static Action fromName(String name) {
+            for (Action action : values()) {
+                if (action.name.equalsIgnoreCase(name)) {
+                    return action;
+                }
+            }
+
+            return null;
+        }
+    }
+
+    private static final int PROGRESS_INTERVAL_TICKS = 20;
+
+    private final VillagerModifications plugin;
+    private final CommandSender sender;
+    private final Action action;
+    private final World world;
+    private final Predicate<Location> area; //Checked on the villager's thread, after checking the world
+    private final String areaDescription;
+    private final int batchSize;
+
+    private final Iterator<Villager> pending;
+    private final int total;
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger matched = new AtomicInteger();
+    private final Queue<UUID> changed = new ConcurrentLinkedQueue<>();
+
+    //Only accessed from the global region thread
+    private ScheduledTask task;
+    private int dispatched;
+    private int ticks;
+    private boolean cancelled;
+
+    private final Runnable onFinish;
+
+    BulkVillagerOperation(VillagerModifications plugin, CommandSender sender, Action action, World world,
+                          Predicate<Location> area, String areaDescription, Collection<Villager> villagers,
+                          int batchSize, Runnable onFinish) {
+        this.plugin = plugin;
+        this.sender = sender;
+        this.action = action;
+        this.world = world;
+        this.area = area;
+        this.areaDescription = areaDescription;
+        this.batchSize = Math.max(1, batchSize);
+        List<Villager> targets = List.copyOf(villagers);
+        this.pending = targets.iterator();
+        this.total = targets.size();
+        this.onFinish = onFinish;
+    }
+
+    void start() {
+        sender.sendMessage("Bulk " + action.name + " started for " + areaDescription + ", checking " + total
+                                   + " loaded villagers");
+
+        if (action != Action.REAPPLY) {
+            sender.sendMessage("Whitelist changes are saved when the operation finishes, and will be lost if the server "
+                                       + "stops before then");
+        }
+        task = plugin.getServer().getGlobalRegionScheduler().runAtFixedRate(plugin, t -> tick(), 1, 1);
+    }
+
+    void cancel() {
+        plugin.getServer().getGlobalRegionScheduler().execute(plugin, () -> cancelled = true);
+    }
+
+    private void tick() {
+        ticks++;
+
+        for (int i = 0; i < batchSize && !cancelled && pending.hasNext(); i++) {
+            Villager villager = pending.next();
+            dispatched++;
+
+            //Returns null if the villager has been removed, and the retired callback runs if it is removed before running
+            if (villager.getScheduler().run(plugin, t -> process(villager), completed::incrementAndGet) == null) {
+                completed.incrementAndGet();
+            }
+        }
+
+        if ((cancelled || !pending.hasNext()) && completed.get() >= dispatched) {
+            finish();
+        } else if (ticks % PROGRESS_INTERVAL_TICKS == 0) {
+            sender.sendMessage("Bulk " + action.name + ": " + completed.get() + "/" + total + " villagers checked, "
+                                       + matched.get() + " in area");
+        }
+    }
+
+    private void process(Villager villager) {
+        try {
+            if (!villager.isValid() || !villager.getWorld().equals(world) || !area.test(villager.getLocation())) {
+                return;
+            }
+
+            matched.incrementAndGet();
+            UUID uuid = villager.getUniqueId();
+
+            switch (action) {
+                case WHITELIST -> {
+                    if (plugin.getWhitelist().add(uuid)) {
+                        changed.add(uuid);
+                    }
+                }
+                case UNWHITELIST -> {
+                    if (plugin.unwhitelist(villager)) {
+                        changed.add(uuid);
+                    }
+                }
+                case REAPPLY -> {
+                    if (!plugin.isWhitelisted(villager)) {
+                        plugin.reapplyTrades(villager);
+                        changed.add(uuid);
+                    }
+                }
+            }
+        } finally {
+            completed.incrementAndGet();
+        }
+    }
+
+    private void finish() {
+        task.cancel();
+
+        //Persist all whitelist changes at once
+        if (!changed.isEmpty()) {
+            switch (action) {
+                case WHITELIST -> plugin.whitelistChanged(changed, List.of());
+                case UNWHITELIST -> plugin.whitelistChanged(List.of(), changed);
+                default -> {
+                }
+            }
+        }
+
+        String result = switch (action) {
+            case WHITELIST -> changed.size() + " whitelisted";
+            case UNWHITELIST -> changed.size() + " removed from the whitelist";
+            case REAPPLY -> changed.size() + " reapplied";
+        };
+
+        sender.sendMessage("Bulk " + action.name + (cancelled ? " cancelled" : " finished") + " after "
+                                   + String.format("%.1f", ticks / 20.0) + "s: " + matched.get() + " of " + completed.get()
+                                   + " villagers checked were in " + areaDescription + ", " + result);
+        onFinish.run();
+    }
+}
@@ -0,0 +1,22 @@
+package xy.plugins.villagermodifications;
+
+import java.io.IOException;
+
+/**
+ * Source of the config.yml used by the plugin. Config is always edited in the local config.yml, stores which share it
+ * between servers publish it on reload and notify the plugin when another server publishes a change.
+ */
+interface ConfigStore {
+    /**
+     * Reads the shared config.
+     * @return the config as YAML, or null if nothing is shared and the local config.yml should be used
+     */
+    String read() throws IOException;
+
+    /**
+     * Shares a config loaded from the local config.yml.
+     */
+    void publish(String yaml);
+
+    void close();
+}
@@ -0,0 +1,123 @@
+package xy.plugins.villagermodifications;
+
+import org.bukkit.command.CommandSender;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-memory ring buffer of trade rewrite events, for debugging.
+ * When disabled, callers guard with {@link #isEnabled()} so tracing costs a single volatile read.
+ * When enabled, recording writes primitives into preallocated arrays and doesn't allocate.
+ * Events recorded concurrently with a dump may appear torn, which is acceptable for debug output.
+ */
+final class DebugTrace {
+    static final byte ENCHANTMENT_REPLACED = 1;
+    static final byte LEVEL_CHANGED = 2;
+    static final byte PRICE_CHANGED = 3;
+    static final byte NO_REPLACEMENT = 4;
+    static final byte CAREER_RESET = 5;
+
+    static final int NONE = -1;
+
+    private final int mask;
+    private final long[] times;
+    private final byte[] types;
+    private final long[] villagerMost;
+    private final long[] villagerLeast;
+    private final int[] recipes;
+    private final int[] oldEnchantments;
+    private final int[] oldLevels;
+    private final int[] newEnchantments;
+    private final int[] newLevels;
+    private final int[] prices;
+
+    private final AtomicLong cursor = new AtomicLong();
+    private volatile boolean enabled;
+
+    DebugTrace(int capacity) {
+        int size = Integer.highestOneBit(Math.max(16, capacity - 1) << 1); //Next power of two
+
+        mask = size - 1;
+        times = new long[size];
+        types = new byte[size];
+        villagerMost = new long[size];
+        villagerLeast = new long[size];
+        recipes = new int[size];
+        oldEnchantments = new int[size];
+        oldLevels = new int[size];
+        newEnchantments = new int[size];
+        newLevels = new int[size];
+        prices = new int[size];
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    void clear() {
+        cursor.set(0);
+    }
+
+    /**
+     * Records an event. Enchantments are catalog ids, unused values should be {@link #NONE}.
+     */
+    void record(byte type, UUID villager, int recipe, int oldEnchantment, int oldLevel,
+                int newEnchantment, int newLevel, int price) {
+        int slot = (int) (cursor.getAndIncrement() & mask);
+
+        times[slot] = System.currentTimeMillis();
+        types[slot] = type;
+        villagerMost[slot] = villager.getMostSignificantBits();
+        villagerLeast[slot] = villager.getLeastSignificantBits();
+        recipes[slot] = recipe;
+        oldEnchantments[slot] = oldEnchantment;
+        oldLevels[slot] = oldLevel;
+        newEnchantments[slot] = newEnchantment;
+        newLevels[slot] = newLevel;
+        prices[slot] = price;
+    }
+
+    /**
+     * Sends up to limit of the most recent events to the sender, oldest first.
+     */
+    void dump(CommandSender sender, EnchantmentCatalog catalog, int limit) {
+        long end = cursor.get();
+        long start = Math.max(0, Math.max(end - (mask + 1), end - limit));
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+
+        sender.sendMessage("Showing " + (end - start) + " of " + end + " recorded trade events");
+
+        for (long seq = start; seq < end; seq++) {
+            int slot = (int) (seq & mask);
+            String message = "[" + format.format(new Date(times[slot])) + "] "
+                    + new UUID(villagerMost[slot], villagerLeast[slot]) + " recipe " + recipes[slot] + ": ";
+
+            message += switch (types[slot]) {
+                case ENCHANTMENT_REPLACED -> "replaced " + enchantment(catalog, oldEnchantments[slot], oldLevels[slot])
+                        + " with " + enchantment(catalog, newEnchantments[slot], newLevels[slot]);
+                case LEVEL_CHANGED -> "changed " + enchantment(catalog, oldEnchantments[slot], oldLevels[slot])
+                        + " to level " + newLevels[slot];
+                case PRICE_CHANGED -> "changed price of " + enchantment(catalog, newEnchantments[slot], newLevels[slot])
+                        + " to " + prices[slot];
+                case NO_REPLACEMENT -> "no allowed replacement for "
+                        + enchantment(catalog, oldEnchantments[slot], oldLevels[slot]);
+                case CAREER_RESET -> "career changed, reset persistent data";
+                default -> "unknown event " + types[slot];
+            };
+
+            sender.sendMessage(message);
+        }
+    }
+
+    private static String enchantment(EnchantmentCatalog catalog, int id, int level) {
+        String name = id >= 0 && id < catalog.size() ? catalog.key(id) : "unknown";
+        return name + ":" + level;
+    }
+}
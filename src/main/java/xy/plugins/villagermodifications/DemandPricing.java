@@ -0,0 +1,249 @@
+package xy.plugins.villagermodifications;
+
+import io.papermc.paper.threadedregions.scheduler.ScheduledTask;
+import org.bukkit.configuration.file.FileConfiguration;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server wide demand driven pricing of enchanted books. Completed book trades are counted per enchantment and level
+ * with striped counters. A periodic async task folds the counts into exponentially decayed demand, and compiles
+ * a table of price multipliers, comparing each book's demand to the average across all traded books.
+ * Pricing reads the published table and nothing else.
+ *
+ * <p>Books are identified by the {@link EnchantmentTables#cell} of their highest level enchantment.
+ * Demand is saved to demand.dat after each update, keyed by enchantment key so it survives registry changes.</p>
+ */
+final class DemandPricing {
+    private static final int SNAPSHOT_MAGIC = 0x564D4450; //"VMDP"
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private final VillagerModifications plugin;
+    private final EnchantmentCatalog catalog;
+    private final File snapshotFile;
+
+    private final LongAdder[] trades; //Trades since the last update, indexed by cell
+    private final double[] demand; //Decayed trades, only accessed while synchronized
+    private volatile float[] multipliers; //Published table, indexed by cell
+
+    //Parameters, changed on reload
+    private volatile double floor;
+    private double halfLifeHours;
+    private double smoothing;
+    private double elasticity;
+    private double minMultiplier;
+    private double maxMultiplier;
+    private long updateInterval;
+
+    private ScheduledTask updateTask;
+    private boolean loaded;
+    private long lastUpdate;
+
+    DemandPricing(VillagerModifications plugin, EnchantmentCatalog catalog) {
+        this.plugin = plugin;
+        this.catalog = catalog;
+        this.snapshotFile = new File(plugin.getDataFolder(), "demand.dat");
+
+        int cells = catalog.size() * EnchantmentTables.LEVEL_STRIDE;
+        this.trades = new LongAdder[cells];
+        this.demand = new double[cells];
+        this.multipliers = new float[cells];
+
+        for (int i = 0; i < cells; i++) {
+            trades[i] = new LongAdder();
+        }
+
+        Arrays.fill(multipliers, 1);
+    }
+
+    /**
+     * Applies settings from the demand-pricing section, loading saved demand and scheduling updates on first call.
+     * Must be called from a single thread, e.g. the global region thread.
+     */
+    synchronized void loadSettings(FileConfiguration config) {
+        long previousInterval = updateInterval;
+
+        this.floor = config.getDouble("demand-pricing.replenish-floor", 0.66);
+        this.halfLifeHours = Math.max(0.01, config.getDouble("demand-pricing.half-life", 24));
+        this.smoothing = Math.max(0, config.getDouble("demand-pricing.smoothing", 20));
+        this.elasticity = config.getDouble("demand-pricing.elasticity", 0.5);
+        this.minMultiplier = config.getDouble("demand-pricing.min-multiplier", 0.75);
+        this.maxMultiplier = Math.max(minMultiplier, config.getDouble("demand-pricing.max-multiplier", 1.5));
+        this.updateInterval = Math.max(1, config.getLong("demand-pricing.update-interval", 300));
+
+        if (!loaded) {
+            loaded = true;
+            lastUpdate = System.currentTimeMillis();
+            load();
+        }
+
+        compile();
+
+        if (updateTask == null || previousInterval != updateInterval) {
+            if (updateTask != null) {
+                updateTask.cancel();
+            }
+
+            updateTask = plugin.getServer().getAsyncScheduler().runAtFixedRate(
+                    plugin, task -> update(), updateInterval, updateInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stops updates and saves current demand, including trades since the last update.
+     */
+    synchronized void close() {
+        if (updateTask == null) {
+            return;
+        }
+
+        updateTask.cancel();
+        updateTask = null;
+
+        fold();
+        save();
+    }
+
+    void recordTrade(int cell) {
+        if (cell >= 0 && cell < trades.length) {
+            trades[cell].increment();
+        }
+    }
+
+    /**
+     * @return the multiplier for a book's price, 1 if the book has no demand index
+     */
+    float getMultiplier(int cell) {
+        float[] table = multipliers;
+        return cell >= 0 && cell < table.length ? table[cell] : 1;
+    }
+
+    int adjustPrice(int cell, int price) {
+        return Math.max(1, Math.min(64, Math.round(price * getMultiplier(cell))));
+    }
+
+    /**
+     * Lowest price a restock may discount a book to. Books in high demand can be discounted less.
+     */
+    int getReplenishFloor(int cell, int basePrice) {
+        return cell < 0 ? 1 : (int) Math.min(basePrice, Math.max(1, Math.round(basePrice * floor * getMultiplier(cell))));
+    }
+
+    private synchronized void update() {
+        fold();
+        compile();
+        save();
+    }
+
+    //Decays demand by the time since the last fold and adds trades counted since
+    private void fold() {
+        long now = System.currentTimeMillis();
+        double decay = Math.pow(0.5, (now - lastUpdate) / (halfLifeHours * 3_600_000));
+
+        lastUpdate = now;
+
+        for (int i = 0; i < demand.length; i++) {
+            demand[i] = demand[i] * decay + trades[i].sumThenReset();
+        }
+    }
+
+    //Multiplier is the book's smoothed demand relative to the average, raised to the elasticity
+    private void compile() {
+        double total = 0;
+        int traded = 0;
+
+        for (double value : demand) {
+            if (value > 0) {
+                total += value;
+                traded++;
+            }
+        }
+
+        double average = traded > 0 ? total / traded : 0;
+        float[] table = new float[demand.length];
+
+        for (int i = 0; i < demand.length; i++) {
+            double index = (demand[i] + smoothing) / (average + smoothing);
+            double multiplier = smoothing + average > 0 ? Math.pow(index, elasticity) : 1;
+
+            table[i] = (float) Math.clamp(multiplier, minMultiplier, maxMultiplier);
+        }
+
+        multipliers = table;
+    }
+
+    private void load() {
+        if (!snapshotFile.exists()) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(snapshotFile))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Unrecognised file format");
+            }
+
+            in.readLong(); //Saved time, demand doesn't decay while the server is stopped
+            int entries = in.readInt();
+
+            for (int i = 0; i < entries; i++) {
+                String key = in.readUTF();
+                int level = in.readByte();
+                double value = in.readDouble();
+                int cell = EnchantmentTables.cell(catalog.id(key), level);
+
+                if (cell >= 0) {
+                    demand[cell] = value;
+                }
+            }
+        } catch (IOException e) {
+            plugin.getLogger().severe("Failed to load demand.dat: " + e);
+        }
+    }
+
+    //Writes to a temporary file first, so a crash can't leave a partial snapshot
+    private void save() {
+        File temp = new File(snapshotFile.getPath() + ".tmp");
+        int entries = 0;
+
+        for (double value : demand) {
+            if (value > 0) {
+                entries++;
+            }
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temp))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(lastUpdate);
+            out.writeInt(entries);
+
+            for (int i = 0; i < demand.length; i++) {
+                if (demand[i] > 0) {
+                    out.writeUTF(catalog.key(i / EnchantmentTables.LEVEL_STRIDE));
+                    out.writeByte(i % EnchantmentTables.LEVEL_STRIDE);
+                    out.writeDouble(demand[i]);
+                }
+            }
+        } catch (IOException e) {
+            plugin.getLogger().severe("Failed to save demand.dat: " + e);
+            return;
+        }
+
+        try {
+            Files.move(temp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            plugin.getLogger().severe("Failed to save demand.dat: " + e);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package xy.plugins.villagermodifications;
+
+import org.bukkit.Registry;
+import org.bukkit.enchantments.Enchantment;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Assigns dense integer ids to every registered enchantment, so per-enchantment data can be held in plain arrays.
+ * The catalog is built once on enable and shared by every settings snapshot. Ids follow registry order and are
+ * persisted in villager trade tags, so they are only stable while the registry is unchanged.
+ */
+final class EnchantmentCatalog {
+    private final Enchantment[] enchantments;
+    private final String[] keys;
+    private final int[] maxLevels;
+    private final boolean[] treasure;
+    private final Map<Enchantment, Integer> ids;
+    private final Map<String, Integer> idsByKey;
+
+    private EnchantmentCatalog(Enchantment[] enchantments, String[] keys, int[] maxLevels, boolean[] treasure) {
+        this.enchantments = enchantments;
+        this.keys = keys;
+        this.maxLevels = maxLevels;
+        this.treasure = treasure;
+        this.ids = new HashMap<>();
+        this.idsByKey = new HashMap<>();
+
+        for(int id = 0; id < keys.length; id++) {
+            if(enchantments[id] != null) {
+                ids.put(enchantments[id], id);
+            }
+
+            idsByKey.put(keys[id], id);
+        }
+    }
+
+    static EnchantmentCatalog fromRegistry() {
+        Enchantment[] enchantments = Registry.ENCHANTMENT.stream().toArray(Enchantment[]::new);
+        String[] keys = new String[enchantments.length];
+        int[] maxLevels = new int[enchantments.length];
+        boolean[] treasure = new boolean[enchantments.length];
+
+        for(int id = 0; id < enchantments.length; id++) {
+            keys[id] = enchantments[id].getKey().getKey();
+            maxLevels[id] = enchantments[id].getMaxLevel();
+            treasure[id] = enchantments[id].isTreasure();
+        }
+
+        return new EnchantmentCatalog(enchantments, keys, maxLevels, treasure);
+    }
+
+    /**
+     * Builds a catalog without enchantment instances, for use without a running server.
+     */
+    static EnchantmentCatalog of(String[] keys, int[] maxLevels, boolean[] treasure) {
+        return new EnchantmentCatalog(new Enchantment[keys.length], keys, maxLevels, treasure);
+    }
+
+    int size() {
+        return keys.length;
+    }
+
+    /**
+     * @return a hash of the keys in id order, which changes if enchantments are added, removed or reordered
+     */
+    int orderHash() {
+        return Arrays.hashCode(keys);
+    }
+
+    /**
+     * @return the id of the given enchantment, or -1 if it was not registered when the catalog was built
+     */
+    int id(Enchantment enchantment) {
+        Integer id = ids.get(enchantment);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * @return the id of the enchantment with the given minecraft key (without namespace), or -1 if there is none
+     */
+    int id(String key) {
+        Integer id = idsByKey.get(key);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * @return the enchantment instance, null if the catalog was built without a server
+     */
+    Enchantment get(int id) {
+        return enchantments[id];
+    }
+
+    String key(int id) {
+        return keys[id];
+    }
+
+    int maxLevel(int id) {
+        return maxLevels[id];
+    }
+
+    boolean isTreasure(int id) {
+        return treasure[id];
+    }
+}
@@ -0,0 +1,323 @@
+package xy.plugins.villagermodifications;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.random.RandomGenerator;
+
+/**
+ * Per villager level enchantment rules, precomputed at load for villager levels 1-5.
+ * Holds the bitset of enchantments each level may offer, and the allowed book levels for each (enchantment, villager level).
+ *
+ * <p>Book prices, max trades and restock floors are compiled from the configured curves into flat tables indexed by
+ * book cell, {@code id * LEVEL_STRIDE + level}, with a final row for books with no known enchantment.</p>
+ */
+final class EnchantmentTables {
+    static final int MIN_VILLAGER_LEVEL = 1;
+    static final int MAX_VILLAGER_LEVEL = 5;
+
+    static final int LEVEL_STRIDE = 8;
+    static final int NO_BOOK = -1;
+
+    private static final int[] NO_LEVELS = new int[0];
+
+    //Curves used where the config doesn't define one, matching vanilla price bands and max trades.
+    //Levels above 5 fall back to the level 1 band, as the fixed price formula did
+    private static final String[] CURVE_FIELDS = {"min-price", "max-price", "max-trades", "replenish-floor"};
+    private static final Map<String, double[][]> DEFAULT_CURVES = Map.of(
+            "default", new double[][] {{5, 8, 11, 14, 17, 5}, {19, 32, 45, 58, 71, 19}, {4, 3}, {0.66}},
+            "treasure", new double[][] {{40}, {63}, {2}, null},
+            "max-level", new double[][] {{40}, {63}, {4, 2}, null});
+
+    private final EnchantmentCatalog catalog;
+    private final int[] minVillagerLevels; //Indexed by enchantment id
+    private final long[][] candidates; //Bitset of enchantment ids that can be offered, indexed by villager level
+    private final int[][][] levelRanges; //Allowed enchantment levels, indexed by [enchantment id][villager level]
+
+    //Indexed by book cell
+    private final int[] minPrices;
+    private final int[] priceSpans;
+    private final int[] maxTrades;
+    private final float[] replenishFloors;
+
+    private EnchantmentTables(EnchantmentCatalog catalog, int[] minVillagerLevels, Map<String, double[][]> curves) {
+        this.catalog = catalog;
+        this.minVillagerLevels = minVillagerLevels;
+        this.candidates = new long[MAX_VILLAGER_LEVEL + 1][words(catalog.size())];
+        this.levelRanges = new int[catalog.size()][MAX_VILLAGER_LEVEL + 1][];
+
+        int cells = (catalog.size() + 1) * LEVEL_STRIDE;
+        this.minPrices = new int[cells];
+        this.priceSpans = new int[cells];
+        this.maxTrades = new int[cells];
+        this.replenishFloors = new float[cells];
+
+        for(int id = -1; id < catalog.size(); id++) {
+            for(int level = 0; level < LEVEL_STRIDE; level++) {
+                int index = index(id, level);
+                int minPrice = (int) Math.max(1, Math.round(curveValue(curves, id, level, 0)));
+                int maxPrice = (int) Math.max(minPrice, Math.round(curveValue(curves, id, level, 1)));
+
+                minPrices[index] = minPrice;
+                priceSpans[index] = maxPrice - minPrice + 1;
+                maxTrades[index] = (int) Math.max(1, Math.round(curveValue(curves, id, level, 2)));
+                replenishFloors[index] = (float) Math.clamp(curveValue(curves, id, level, 3), 0, 1);
+            }
+        }
+
+        int soulSpeed = catalog.id("soul_speed");
+        int swiftSneak = catalog.id("swift_sneak");
+
+        for(int id = 0; id < catalog.size(); id++) {
+            for(int villagerLevel = MIN_VILLAGER_LEVEL; villagerLevel <= MAX_VILLAGER_LEVEL; villagerLevel++) {
+                levelRanges[id][villagerLevel] = computeLevelRange(id, villagerLevel);
+
+                if(id != soulSpeed && id != swiftSneak && minVillagerLevels[id] <= villagerLevel) {
+                    candidates[villagerLevel][id >>> 6] |= 1L << id;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param pricing the enchantments.pricing section, or null to use the default curves
+     */
+    static EnchantmentTables compile(ConfigurationSection minVillagerLevels, ConfigurationSection pricing,
+                                     EnchantmentCatalog catalog, Logger logger) {
+        int[] minLevels = new int[catalog.size()];
+        Arrays.fill(minLevels, 1);
+
+        if(minVillagerLevels != null) {
+            minVillagerLevels.getKeys(false).forEach((String key) -> {
+                int id = catalog.id(key);
+
+                if(id >= 0) {
+                    minLevels[id] = minVillagerLevels.getInt(key, 1);
+                } else {
+                    logger.warning("Invalid enchantment " + key);
+                }
+            });
+        }
+
+        Map<String, double[][]> curves = new HashMap<>();
+
+        if(pricing != null) {
+            for(String key : pricing.getKeys(false)) {
+                if(!DEFAULT_CURVES.containsKey(key) && catalog.id(key) < 0) {
+                    logger.warning("Invalid enchantment " + key);
+                    continue;
+                }
+
+                double[][] curve = new double[CURVE_FIELDS.length][];
+
+                for(int field = 0; field < CURVE_FIELDS.length; field++) {
+                    curve[field] = readCurve(pricing, key + "." + CURVE_FIELDS[field], logger);
+                }
+
+                curves.put(key, curve);
+            }
+        }
+
+        return new EnchantmentTables(catalog, minLevels, curves);
+    }
+
+    //A single number, or a list by enchantment level
+    private static double[] readCurve(ConfigurationSection pricing, String path, Logger logger) {
+        Object value = pricing.get(path);
+
+        if(value instanceof Number number) {
+            return new double[] {number.doubleValue()};
+        }
+
+        if(value instanceof List<?> list && !list.isEmpty() && list.stream().allMatch(Number.class::isInstance)) {
+            return list.stream().mapToDouble(entry -> ((Number) entry).doubleValue()).toArray();
+        }
+
+        if(value != null) {
+            logger.warning("Invalid pricing curve " + path);
+        }
+
+        return null;
+    }
+
+    //Looks up the enchantment's own curve, then treasure, max-level and default, configured curves before built in ones
+    private double curveValue(Map<String, double[][]> curves, int id, int level, int field) {
+        boolean known = id >= 0;
+        String[] names = {
+                known ? catalog.key(id) : null,
+                known && catalog.isTreasure(id) ? "treasure" : null,
+                known && catalog.maxLevel(id) == level ? "max-level" : null,
+                "default"
+        };
+
+        for(String name : names) {
+            if(name == null) {
+                continue;
+            }
+
+            double[][] configured = curves.get(name);
+            double[][] defaults = DEFAULT_CURVES.get(name);
+            double[] curve = configured != null && configured[field] != null ? configured[field]
+                    : defaults != null ? defaults[field] : null;
+
+            if(curve != null) {
+                return curve[Math.clamp(level - 1, 0, curve.length - 1)]; //Last value repeats for higher levels
+            }
+        }
+
+        throw new IllegalStateException("No default for " + CURVE_FIELDS[field]);
+    }
+
+    /**
+     * @return the book cell for an enchantment and level, or {@link #NO_BOOK} if the enchantment is unknown
+     */
+    static int cell(int id, int level) {
+        return id < 0 || level <= 0 ? NO_BOOK : id * LEVEL_STRIDE + Math.min(level, LEVEL_STRIDE - 1);
+    }
+
+    private int index(int id, int level) {
+        return (id >= 0 ? id : catalog.size()) * LEVEL_STRIDE + Math.clamp(level, 0, LEVEL_STRIDE - 1);
+    }
+
+    EnchantmentCatalog getCatalog() {
+        return catalog;
+    }
+
+    /**
+     * @return a bitset large enough to hold every enchantment id
+     */
+    long[] newEnchantmentSet() {
+        return new long[words(catalog.size())];
+    }
+
+    static void add(long[] set, int id) {
+        set[id >>> 6] |= 1L << id;
+    }
+
+    static boolean contains(long[] set, int id) {
+        return (set[id >>> 6] & (1L << id)) != 0;
+    }
+
+    boolean isAllowed(int id, int villagerLevel, long[] disallowed) {
+        return !contains(disallowed, id) && clamp(villagerLevel) >= minVillagerLevels[id];
+    }
+
+    /**
+     * @return the allowed enchantment levels for the villager level, empty if it can't be offered at all. Must not be modified.
+     */
+    int[] getLevelRange(int id, int villagerLevel) {
+        return levelRanges[id][clamp(villagerLevel)];
+    }
+
+    /**
+     * Picks a random enchantment that can be offered at the villager level and isn't in the disallowed set.
+     * @return the enchantment id, or -1 if every candidate is disallowed
+     */
+    int pickEnchantment(int villagerLevel, long[] disallowed, RandomGenerator random) {
+        long[] allowed = candidates[clamp(villagerLevel)];
+        int count = 0;
+
+        for(int word = 0; word < allowed.length; word++) {
+            count += Long.bitCount(allowed[word] & ~disallowed[word]);
+        }
+
+        if(count == 0) {
+            return -1;
+        }
+
+        int remaining = random.nextInt(count);
+
+        for(int word = 0; word < allowed.length; word++) {
+            long bits = allowed[word] & ~disallowed[word];
+            int bitCount = Long.bitCount(bits);
+
+            if(remaining >= bitCount) {
+                remaining -= bitCount;
+                continue;
+            }
+
+            for(; remaining > 0; remaining--) {
+                bits &= bits - 1; //Clear lowest set bit
+            }
+
+            return (word << 6) + Long.numberOfTrailingZeros(bits);
+        }
+
+        return -1;
+    }
+
+    /**
+     * @param id the enchantment id, or -1 if unknown
+     */
+    int getPrice(int id, int level, RandomGenerator random) {
+        int index = index(id, level);
+        return minPrices[index] + random.nextInt(priceSpans[index]);
+    }
+
+    /**
+     * @param id the enchantment id, or -1 if unknown
+     */
+    int getMaxTrades(int id, int level) {
+        return maxTrades[index(id, level)];
+    }
+
+    /**
+     * Fraction of a book's base price a restock may discount it to, when book minimum prices are limited.
+     * @param cell the book cell, or {@link #NO_BOOK} for a book with no known enchantment
+     */
+    float getReplenishFloor(int cell) {
+        return replenishFloors[cell >= 0 ? cell : index(-1, 1)];
+    }
+
+    private int[] computeLevelRange(int id, int villagerLevel) {
+        int minVillagerLevel = minVillagerLevels[id];
+        int maxLevel = catalog.maxLevel(id);
+
+        if(villagerLevel < minVillagerLevel) {
+            return NO_LEVELS;
+        }
+
+        if(maxLevel == 1) {
+            return new int[] {1};
+        }
+
+        //(number of villager levels above the min required) / (total number of villager levels allowing the enchantment)
+        //Multiplied by max enchant level and rounded to get base level
+        int baseLevel = Math.max(1, Math.round(maxLevel * ((villagerLevel - minVillagerLevel) / (float) (4 - minVillagerLevel))));
+
+        //If the enchantment has less levels than required to fill all allowed villager levels
+        //and current villager level is the min required for this enchantment
+        //limit range to lowest level
+        if(maxLevel <= (4 - minVillagerLevel) && villagerLevel == minVillagerLevel) {
+            return new int[] {baseLevel};
+        }
+
+        //Otherwise add levels above and below to range, if possible
+        int[] range = new int[3];
+        int size = 0;
+
+        range[size++] = baseLevel;
+
+        if(baseLevel > 1) {
+            range[size++] = baseLevel - 1;
+        }
+
+        if(baseLevel < maxLevel) {
+            range[size++] = baseLevel + 1;
+        }
+
+        return Arrays.copyOf(range, size);
+    }
+
+    private static int clamp(int villagerLevel) {
+        return Math.max(MIN_VILLAGER_LEVEL, Math.min(MAX_VILLAGER_LEVEL, villagerLevel));
+    }
+
+    private static int words(int bits) {
+        return (bits + 63) >>> 6;
+    }
+}
@@ -0,0 +1,19 @@
+package xy.plugins.villagermodifications;
+
+/**
+ * Default config store, where each server uses its own config.yml.
+ */
+final class FileConfigStore implements ConfigStore {
+    @Override
+    public String read() {
+        return null;
+    }
+
+    @Override
+    public void publish(String yaml) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,67 @@
+package xy.plugins.villagermodifications;
+
+import org.bukkit.Material;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * Compiled form of an item1/item2/result section of a trade rule. Replacement items are built once when compiled,
+ * and shared by every recipe the rule rewrites.
+ */
+final class IngredientRule {
+    private static final int UNSET = -1;
+
+    private final ItemStack prototype; //Replacement item, never modified, null to keep the original item
+    private final int cost; //Replacement amount, UNSET to keep the original amount (or 1 for a replacement material)
+
+    private IngredientRule(Material material, int cost) {
+        this.prototype = material != null ? new ItemStack(material, cost != UNSET ? cost : 1) : null;
+        this.cost = cost;
+    }
+
+    static IngredientRule compile(ConfigurationSection config) {
+        if(config == null) {
+            return null;
+        }
+
+        Material material = Material.getMaterial(config.getString("material", ""));
+        int cost = config.isSet("cost") ? config.getInt("cost") : UNSET;
+
+        return new IngredientRule(material, cost);
+    }
+
+    /**
+     * @return whether the item is already what this rule would replace it with
+     */
+    boolean matches(ItemStack item) {
+        if(prototype != null) {
+            return prototype.equals(item);
+        }
+
+        return cost == UNSET || (item != null && item.getAmount() == cost);
+    }
+
+    /**
+     * @return the replacement for an item, which may be the original item or the shared prototype,
+     * so must be copied before being modified
+     */
+    ItemStack apply(ItemStack originalItem) {
+        if(prototype != null) {
+            return prototype;
+        }
+
+        if(cost == UNSET || originalItem.getAmount() == cost) {
+            return originalItem;
+        }
+
+        ItemStack item = originalItem.clone();
+        item.setAmount(cost);
+
+        return item;
+    }
+
+    //Results aren't copied into recipes, so get their own copy of the prototype in case they are modified later
+    ItemStack applyToResult(ItemStack originalItem) {
+        return prototype != null ? prototype.clone() : apply(originalItem);
+    }
+}
@@ -0,0 +1,66 @@
+package xy.plugins.villagermodifications;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collapses repeated interactions with the same villager into one pass per window, for trading halls where players
+ * spam click and several players click the same villager at once.
+ *
+ * <p>A small direct mapped table keyed by entity id, each slot packing the entity id and the time it was last
+ * processed into one long, so it is lock free and doesn't allocate. Entries expire by age rather than being removed.
+ * Entity ids that collide evict each other, which only costs an extra pass.</p>
+ */
+final class InteractionCoalescer {
+    private final AtomicLongArray slots;
+    private final int shift;
+
+    InteractionCoalescer(int capacity) {
+        int size = Integer.highestOneBit(Math.clamp(capacity - 1, 16, 1 << 24) << 1); //Next power of two
+
+        slots = new AtomicLongArray(size);
+        shift = Integer.numberOfLeadingZeros(size) + 1;
+    }
+
+    /**
+     * Claims a pass for an entity, unless it already had one within the window.
+     * @return whether the caller should process the entity
+     */
+    boolean tryAcquire(int entityId, long windowMillis) {
+        return tryAcquire(entityId, windowMillis, System.currentTimeMillis());
+    }
+
+    //With the current time supplied, so offline harnesses can run on a simulated clock
+    boolean tryAcquire(int entityId, long windowMillis, long nowMillis) {
+        if (windowMillis <= 0) {
+            return true;
+        }
+
+        int slot = slot(entityId);
+        int now = (int) nowMillis; //Wraps, but only differences within the window matter
+        long current = slots.get(slot);
+
+        if ((int) (current >>> 32) == entityId && current != 0 && now - (int) current < windowMillis) {
+            return false;
+        }
+
+        //If another thread updated the slot first, skip if it claimed the same entity, otherwise process anyway
+        return slots.compareAndSet(slot, current, (long) entityId << 32 | (now & 0xFFFFFFFFL))
+                || (int) (slots.get(slot) >>> 32) != entityId;
+    }
+
+    /**
+     * Forgets an entity's last pass, so its next interaction is processed, e.g. after removal from the whitelist.
+     */
+    void invalidate(int entityId) {
+        int slot = slot(entityId);
+        long current = slots.get(slot);
+
+        if ((int) (current >>> 32) == entityId) {
+            slots.compareAndSet(slot, current, 0);
+        }
+    }
+
+    private int slot(int entityId) {
+        return (entityId * 0x9E3779B9) >>> shift; //Fibonacci hashing, as sequential ids are common
+    }
+}
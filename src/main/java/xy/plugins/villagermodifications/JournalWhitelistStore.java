@@ -0,0 +1,398 @@
+package xy.plugins.villagermodifications;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Write-behind whitelist persistence. Changes are appended as fixed size records to whitelist.journal on a background
+ * thread, which periodically compacts them into a binary whitelist.dat snapshot.
+ * Loading reads the snapshot and replays the journal on top. whitelist.yml is migrated when it is newer than both,
+ * and is left in place so switching back to yaml persistence keeps working.
+ * Files that can't be read are moved aside with a .corrupt suffix rather than overwritten.
+ */
+final class JournalWhitelistStore implements WhitelistStore {
+    private static final int SNAPSHOT_MAGIC = 0x564D574C; //"VMWL"
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final byte RECORD_REMOVE = 0;
+    private static final byte RECORD_ADD = 1;
+    private static final int RECORD_SIZE = 17; //Type byte followed by both UUID halves
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private final File legacyFile;
+    private final Logger logger;
+    private final int compactAfter;
+    private final long compactInterval;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "VillagerModifications whitelist writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    //Only accessed from the writer thread after load
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private UuidSet mirror;
+    private FileChannel journal;
+    private int journalRecords;
+    private boolean failed; //Unreadable files couldn't be moved aside, so nothing is written over them
+
+    JournalWhitelistStore(File dataFolder, Logger logger, int compactAfter, long compactInterval) {
+        this.snapshotFile = new File(dataFolder, "whitelist.dat");
+        this.journalFile = new File(dataFolder, "whitelist.journal");
+        this.legacyFile = new File(dataFolder, "whitelist.yml");
+        this.logger = logger;
+        this.compactAfter = compactAfter;
+        this.compactInterval = compactInterval;
+    }
+
+    @Override
+    public UuidSet load() {
+        UuidSet whitelist = new UuidSet();
+
+        try {
+            //whitelist.yml was written after the journal, by yaml or sql persistence, so it has the latest changes
+            if (legacyFile.lastModified() > lastModified(snapshotFile, journalFile)) {
+                migrate(whitelist);
+            } else {
+                readSnapshot(snapshotFile, whitelist);
+                journalRecords = replayJournal(journalFile, whitelist);
+            }
+        } catch (IOException e) {
+            logger.severe("Failed to load whitelist, continuing with the " + whitelist.size()
+                                  + " whitelisted villagers read: " + e);
+            failed = !moveAside();
+            journalRecords = 0;
+        }
+
+        if (!failed) {
+            try {
+                journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                           StandardOpenOption.APPEND);
+
+                //Drop any partially written record left by a crash, so new records stay aligned
+                journal.truncate((long) journalRecords * RECORD_SIZE);
+            } catch (IOException e) {
+                logger.severe("Failed to open whitelist journal: " + e);
+            }
+        }
+
+        mirror = whitelist.copy();
+
+        if (compactInterval > 0) {
+            executor.scheduleWithFixedDelay(this::compact, compactInterval, compactInterval, TimeUnit.SECONDS);
+        }
+
+        return whitelist;
+    }
+
+    @Override
+    public void added(UUID uuid) {
+        submit(() -> append(RECORD_ADD, uuid));
+    }
+
+    @Override
+    public void removed(UUID uuid) {
+        submit(() -> append(RECORD_REMOVE, uuid));
+    }
+
+    @Override
+    public void changed(Collection<UUID> added, Collection<UUID> removed) {
+        List<UUID> addedCopy = List.copyOf(added);
+        List<UUID> removedCopy = List.copyOf(removed);
+
+        submit(() -> {
+            appendAll(RECORD_ADD, addedCopy);
+            appendAll(RECORD_REMOVE, removedCopy);
+
+            try {
+                if (journal != null) {
+                    journal.force(false);
+                }
+            } catch (IOException e) {
+                logger.severe("Failed to save whitelist: " + e);
+            }
+        });
+    }
+
+    @Override
+    public void save() {
+        submit(() -> {
+            try {
+                if (journal != null) {
+                    journal.force(false);
+                }
+            } catch (IOException e) {
+                logger.severe("Failed to save whitelist: " + e);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        submit(this::compact);
+        executor.shutdown();
+
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                logger.severe("Timed out waiting for whitelist to save");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            if (journal != null) {
+                journal.close();
+            }
+        } catch (IOException e) {
+            logger.severe("Failed to close whitelist journal: " + e);
+        }
+    }
+
+    private void submit(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            logger.severe("Whitelist change received after store was closed");
+        }
+    }
+
+    private void append(byte type, UUID uuid) {
+        if (type == RECORD_ADD) {
+            mirror.add(uuid);
+        } else {
+            mirror.remove(uuid);
+        }
+
+        if (journal == null) {
+            return;
+        }
+
+        record.clear();
+        record.put(type).putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits()).flip();
+
+        try {
+            while (record.hasRemaining()) {
+                journal.write(record);
+            }
+        } catch (IOException e) {
+            logger.severe("Failed to append to whitelist journal: " + e);
+            return;
+        }
+
+        if (++journalRecords >= compactAfter) {
+            compact();
+        }
+    }
+
+    //Appends records for a batch of changes with a single write
+    private void appendAll(byte type, List<UUID> uuids) {
+        if (uuids.isEmpty()) {
+            return;
+        }
+
+        ByteBuffer records = ByteBuffer.allocate(uuids.size() * RECORD_SIZE);
+
+        for (UUID uuid : uuids) {
+            if (type == RECORD_ADD) {
+                mirror.add(uuid);
+            } else {
+                mirror.remove(uuid);
+            }
+
+            records.put(type).putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+        }
+
+        if (journal == null) {
+            return;
+        }
+
+        records.flip();
+
+        try {
+            while (records.hasRemaining()) {
+                journal.write(records);
+            }
+        } catch (IOException e) {
+            logger.severe("Failed to append to whitelist journal: " + e);
+            return;
+        }
+
+        journalRecords += uuids.size();
+
+        if (journalRecords >= compactAfter) {
+            compact();
+        }
+    }
+
+    //Writes the mirror to a new snapshot, then truncates the journal. Replaying records is idempotent,
+    //so a crash between the two steps only means the journal is replayed over an up-to-date snapshot
+    private void compact() {
+        if (failed || (journalRecords == 0 && snapshotFile.exists())) {
+            return;
+        }
+
+        try {
+            writeSnapshot(mirror);
+
+            if (journal != null) {
+                journal.truncate(0);
+                journal.force(true);
+            }
+
+            journalRecords = 0;
+        } catch (IOException e) {
+            logger.severe("Failed to compact whitelist journal: " + e);
+        }
+    }
+
+    private void migrate(UuidSet whitelist) throws IOException {
+        int invalid = 0;
+
+        for (String entry : YamlConfiguration.loadConfiguration(legacyFile).getStringList("whitelist")) {
+            try {
+                whitelist.add(UUID.fromString(entry));
+            } catch (IllegalArgumentException e) {
+                invalid++;
+            }
+        }
+
+        //The snapshot replaces any older journal, which is truncated once opened
+        writeSnapshot(whitelist);
+        journalRecords = 0;
+
+        logger.info("Migrated " + whitelist.size() + " whitelisted villagers from whitelist.yml"
+                            + (invalid > 0 ? ", skipped " + invalid + " invalid entries" : ""));
+    }
+
+    //Moves the snapshot and journal to .corrupt files, so the next compaction doesn't replace them.
+    //Returns false if either couldn't be moved
+    private boolean moveAside() {
+        for (File file : new File[] {snapshotFile, journalFile}) {
+            if (!file.exists()) {
+                continue;
+            }
+
+            File corrupt = new File(file.getPath() + ".corrupt");
+
+            try {
+                Files.move(file.toPath(), corrupt.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                logger.severe("Failed to move " + file.getName() + " aside, whitelist changes won't be saved: " + e);
+                return false;
+            }
+
+            logger.severe("Moved unreadable " + file.getName() + " to " + corrupt.getName());
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads the whitelist last written by journal persistence in the given folder, for other stores switching from it.
+     */
+    static UuidSet read(File dataFolder) throws IOException {
+        UuidSet whitelist = new UuidSet();
+
+        readSnapshot(new File(dataFolder, "whitelist.dat"), whitelist);
+        replayJournal(new File(dataFolder, "whitelist.journal"), whitelist);
+
+        return whitelist;
+    }
+
+    /**
+     * Returns when journal persistence in the given folder was last written, or 0 if it has never been used.
+     */
+    static long lastModified(File dataFolder) {
+        return lastModified(new File(dataFolder, "whitelist.dat"), new File(dataFolder, "whitelist.journal"));
+    }
+
+    private static long lastModified(File snapshotFile, File journalFile) {
+        return Math.max(snapshotFile.lastModified(), journalFile.lastModified());
+    }
+
+    private static void readSnapshot(File snapshotFile, UuidSet whitelist) throws IOException {
+        if (!snapshotFile.exists()) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Unrecognised whitelist snapshot format");
+            }
+
+            int count = in.readInt();
+
+            for (int i = 0; i < count; i++) {
+                whitelist.add(in.readLong(), in.readLong());
+            }
+        }
+    }
+
+    private void writeSnapshot(UuidSet whitelist) throws IOException {
+        File temp = new File(snapshotFile.getPath() + ".tmp");
+
+        try (FileOutputStream file = new FileOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(whitelist.size());
+
+            for (UUID uuid : whitelist.toList()) {
+                out.writeLong(uuid.getMostSignificantBits());
+                out.writeLong(uuid.getLeastSignificantBits());
+            }
+
+            out.flush();
+            file.getFD().sync();
+        }
+
+        Files.move(temp.toPath(), snapshotFile.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    //Returns the number of complete records replayed, a partially written trailing record is ignored
+    private static int replayJournal(File journalFile, UuidSet whitelist) throws IOException {
+        if (!journalFile.exists()) {
+            return 0;
+        }
+
+        int records = 0;
+        byte[] buffer = new byte[RECORD_SIZE];
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            while (in.readNBytes(buffer, 0, RECORD_SIZE) == RECORD_SIZE) {
+                ByteBuffer entry = ByteBuffer.wrap(buffer);
+                byte type = entry.get();
+                long msb = entry.getLong();
+                long lsb = entry.getLong();
+
+                if (type == RECORD_ADD) {
+                    whitelist.add(msb, lsb);
+                } else {
+                    whitelist.remove(msb, lsb);
+                }
+
+                records++;
+            }
+        }
+
+        return records;
+    }
+}
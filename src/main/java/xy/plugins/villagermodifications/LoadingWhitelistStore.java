@@ -0,0 +1,173 @@
+package xy.plugins.villagermodifications;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+/**
+ * Stands in for the whitelist store while it is replaced on the async scheduler, as closing and loading stores can
+ * block on files or the database. Changes made in the meantime are recorded, replayed onto the loaded whitelist and
+ * store when they are handed over, and forwarded to them afterwards.
+ */
+final class LoadingWhitelistStore implements WhitelistStore {
+    private static final class Change {
+        private final UUID uuid;
+        private final boolean added;
+
+        private Change(UUID uuid, boolean added) {
+            this.uuid = uuid;
+            this.added = added;
+        }
+    }
+
+    private final WhitelistStore previous; //Closed before the next store loads, so it reads what the previous wrote
+    private final WhitelistStore next;
+    private final Logger logger;
+    private final CompletableFuture<UuidSet> loaded = new CompletableFuture<>();
+
+    //Guarded by this
+    private final List<Change> changes = new ArrayList<>();
+    private UuidSet whitelist; //Set once handed over
+
+    LoadingWhitelistStore(WhitelistStore previous, WhitelistStore next, Logger logger) {
+        this.previous = previous;
+        this.next = next;
+        this.logger = logger;
+    }
+
+    /**
+     * Closes the previous store and loads the next, blocking until both are done.
+     */
+    UuidSet loadNext() {
+        try {
+            if (previous != null) {
+                previous.close();
+            }
+
+            UuidSet whitelist = next.load();
+            loaded.complete(whitelist);
+
+            return whitelist;
+        } catch (RuntimeException e) {
+            loaded.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Replays the changes recorded while loading onto the loaded whitelist and the next store.
+     * Changes recorded after this are applied to both directly.
+     */
+    synchronized void handOver(UuidSet whitelist) {
+        Map<UUID, Boolean> finalStates = new LinkedHashMap<>(); //Whether each changed villager ends up whitelisted
+
+        for (Change change : changes) {
+            finalStates.put(change.uuid, change.added);
+        }
+
+        List<UUID> added = new ArrayList<>();
+        List<UUID> removed = new ArrayList<>();
+
+        finalStates.forEach((uuid, whitelisted) -> {
+            if (whitelisted) {
+                whitelist.add(uuid);
+                added.add(uuid);
+            } else {
+                whitelist.remove(uuid);
+                removed.add(uuid);
+            }
+        });
+
+        if (!finalStates.isEmpty()) {
+            next.changed(added, removed);
+        }
+
+        changes.clear();
+        this.whitelist = whitelist;
+    }
+
+    @Override
+    public UuidSet load() {
+        throw new UnsupportedOperationException("Loaded through loadNext");
+    }
+
+    @Override
+    public synchronized void added(UUID uuid) {
+        if (whitelist != null) {
+            whitelist.add(uuid);
+            next.added(uuid);
+        } else {
+            changes.add(new Change(uuid, true));
+        }
+    }
+
+    @Override
+    public synchronized void removed(UUID uuid) {
+        if (whitelist != null) {
+            whitelist.remove(uuid);
+            next.removed(uuid);
+        } else {
+            changes.add(new Change(uuid, false));
+        }
+    }
+
+    @Override
+    public synchronized void changed(Collection<UUID> added, Collection<UUID> removed) {
+        if (whitelist != null) {
+            added.forEach(whitelist::add);
+            removed.forEach(whitelist::remove);
+            next.changed(added, removed);
+            return;
+        }
+
+        for (UUID uuid : added) {
+            changes.add(new Change(uuid, true));
+        }
+
+        for (UUID uuid : removed) {
+            changes.add(new Change(uuid, false));
+        }
+    }
+
+    @Override
+    public synchronized void save() {
+        if (whitelist != null) {
+            next.save();
+        }
+    }
+
+    /**
+     * Waits for the next store to load, hands the recorded changes over to it if that hasn't happened yet, then
+     * closes it.
+     */
+    @Override
+    public void close() {
+        UuidSet whitelist;
+
+        try {
+            whitelist = loaded.get(30, TimeUnit.SECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            logger.severe("Failed to load whitelist, changes made while it was loading have not been saved: " + e);
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        synchronized (this) {
+            if (this.whitelist == null) {
+                handOver(whitelist);
+            }
+        }
+
+        next.close();
+    }
+}
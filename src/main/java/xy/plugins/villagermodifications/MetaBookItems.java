@@ -0,0 +1,83 @@
+package xy.plugins.villagermodifications;
+
+import org.bukkit.Material;
+import org.bukkit.enchantments.Enchantment;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.EnchantmentStorageMeta;
+
+import java.util.Map;
+
+/**
+ * Reads and writes book enchantments through the item's {@link EnchantmentStorageMeta}.
+ */
+final class MetaBookItems implements BookItems {
+    private final EnchantmentCatalog catalog;
+
+    MetaBookItems(EnchantmentCatalog catalog) {
+        this.catalog = catalog;
+    }
+
+    @Override
+    public void read(ItemStack book, BookPlan plan) {
+        EnchantmentStorageMeta meta = (EnchantmentStorageMeta) book.getItemMeta();
+
+        for (Map.Entry<Enchantment, Integer> entry : meta.getStoredEnchants().entrySet()) {
+            plan.add(catalog.id(entry.getKey()), entry.getValue());
+        }
+    }
+
+    @Override
+    public void addTo(ItemStack book, long[] enchantments) {
+        EnchantmentStorageMeta meta = (EnchantmentStorageMeta) book.getItemMeta();
+
+        for (Enchantment enchantment : meta.getStoredEnchants().keySet()) {
+            int id = catalog.id(enchantment);
+
+            if(id >= 0) {
+                EnchantmentTables.add(enchantments, id);
+            }
+        }
+    }
+
+    @Override
+    public int getBookCell(ItemStack item) {
+        if(item.getType() != Material.ENCHANTED_BOOK || !(item.getItemMeta() instanceof EnchantmentStorageMeta meta)) {
+            return EnchantmentTables.NO_BOOK;
+        }
+
+        int id = -1;
+        int level = 0;
+
+        for (Map.Entry<Enchantment, Integer> entry : meta.getStoredEnchants().entrySet()) {
+            if(entry.getValue() > level) {
+                id = catalog.id(entry.getKey());
+                level = entry.getValue();
+            }
+        }
+
+        return EnchantmentTables.cell(id, level);
+    }
+
+    @Override
+    public ItemStack write(ItemStack book, BookPlan plan) {
+        EnchantmentStorageMeta meta = (EnchantmentStorageMeta) book.getItemMeta();
+
+        for (int i = 0; i < plan.size; i++) {
+            switch (plan.actions[i]) {
+                case BookPlan.REPLACED -> {
+                    meta.removeStoredEnchant(catalog.get(plan.ids[i]));
+                    meta.addStoredEnchant(catalog.get(plan.newIds[i]), plan.newLevels[i], false);
+                }
+                case BookPlan.LEVEL_CHANGED -> {
+                    meta.removeStoredEnchant(catalog.get(plan.ids[i]));
+                    meta.addStoredEnchant(catalog.get(plan.ids[i]), plan.newLevels[i], false);
+                }
+                default -> {
+                }
+            }
+        }
+
+        book.setItemMeta(meta);
+        return book;
+    }
+}
@@ -0,0 +1,210 @@
+package xy.plugins.villagermodifications;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import org.bukkit.command.CommandSender;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Handler timings and rewrite counters, shown by /vmstats and emitted as JFR events.
+ * Everything uses striped accumulators, so recording from multiple region threads doesn't contend.
+ */
+final class PluginMetrics {
+    enum Handler {
+        INTERACT("interact"),
+        TRADE_REPLENISH("tradeReplenish"),
+        CHECK_BOOK_TRADES("checkBookTrades");
+
+        private final String name;
+
+        Handler(String name) {
+            this.name = name;
+        }
+    }
+
+    private static final EventType HANDLER_EVENT_TYPE = EventType.getEventType(HandlerTimingEvent.class);
+
+    final LongAdder recipesRewritten = new LongAdder();
+    final LongAdder enchantmentsReplaced = new LongAdder();
+    final LongAdder replenishClamps = new LongAdder();
+    final LongAdder whitelistHits = new LongAdder();
+    final LongAdder interactionsCoalesced = new LongAdder();
+    final LongAdder staleUpdates = new LongAdder(); //Background trade updates discarded as the villager changed
+
+    private final Histogram[] histograms = new Histogram[Handler.values().length];
+    private final Runnable countersHook = this::emitCounters;
+
+    PluginMetrics() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+    void registerJfr() {
+        FlightRecorder.addPeriodicEvent(TradeCountersEvent.class, countersHook);
+    }
+
+    void unregisterJfr() {
+        FlightRecorder.removePeriodicEvent(countersHook);
+    }
+
+    /**
+     * Records the time since start, as returned by {@link System#nanoTime()}, against a handler.
+     */
+    void record(Handler handler, long start) {
+        long elapsed = System.nanoTime() - start;
+        histograms[handler.ordinal()].record(elapsed);
+
+        if (HANDLER_EVENT_TYPE.isEnabled()) {
+            HandlerTimingEvent event = new HandlerTimingEvent();
+            event.handler = handler.name;
+            event.nanos = elapsed;
+            event.commit();
+        }
+    }
+
+    void reset() {
+        for (Histogram histogram : histograms) {
+            histogram.reset();
+        }
+
+        recipesRewritten.reset();
+        enchantmentsReplaced.reset();
+        replenishClamps.reset();
+        whitelistHits.reset();
+        interactionsCoalesced.reset();
+        staleUpdates.reset();
+    }
+
+    void sendStats(CommandSender sender) {
+        sender.sendMessage("Handler timings (ms): count / mean / p50 / p99 / max");
+
+        for (Handler handler : Handler.values()) {
+            Histogram histogram = histograms[handler.ordinal()];
+            long count = histogram.count.sum();
+
+            sender.sendMessage(String.format("  %s: %d / %.3f / %.3f / %.3f / %.3f", handler.name, count,
+                                             count > 0 ? histogram.total.sum() / (double) count / 1_000_000 : 0,
+                                             histogram.percentile(0.5) / 1_000_000.0,
+                                             histogram.percentile(0.99) / 1_000_000.0,
+                                             histogram.max.get() / 1_000_000.0));
+        }
+
+        sender.sendMessage("Recipes rewritten: " + recipesRewritten.sum());
+        sender.sendMessage("Enchantments replaced: " + enchantmentsReplaced.sum());
+        sender.sendMessage("Replenish price clamps: " + replenishClamps.sum());
+        sender.sendMessage("Whitelist hits: " + whitelistHits.sum());
+        sender.sendMessage("Interactions coalesced: " + interactionsCoalesced.sum());
+        sender.sendMessage("Stale background updates: " + staleUpdates.sum());
+    }
+
+    private void emitCounters() {
+        TradeCountersEvent event = new TradeCountersEvent();
+        event.recipesRewritten = recipesRewritten.sum();
+        event.enchantmentsReplaced = enchantmentsReplaced.sum();
+        event.replenishClamps = replenishClamps.sum();
+        event.whitelistHits = whitelistHits.sum();
+        event.interactionsCoalesced = interactionsCoalesced.sum();
+        event.staleUpdates = staleUpdates.sum();
+        event.commit();
+    }
+
+    /**
+     * Log2 bucketed histogram, bucket i holds durations of bit length i. Percentiles are reported as the upper bound
+     * of the bucket containing them, so are accurate to within a factor of two.
+     */
+    private static final class Histogram {
+        private final LongAdder[] buckets = new LongAdder[65];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+        private Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        private void record(long nanos) {
+            buckets[64 - Long.numberOfLeadingZeros(Math.max(0, nanos))].increment();
+            count.increment();
+            total.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        private long percentile(double percentile) {
+            long target = (long) Math.ceil(count.sum() * percentile);
+            long seen = 0;
+
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i].sum();
+
+                if (target > 0 && seen >= target) {
+                    return Math.min(i == 0 ? 0 : (1L << i) - 1, max.get());
+                }
+            }
+
+            return 0;
+        }
+
+        private void reset() {
+            for (LongAdder bucket : buckets) {
+                bucket.reset();
+            }
+
+            count.reset();
+            total.reset();
+            max.reset();
+        }
+    }
+
+    @Name("xy.villagermodifications.HandlerTiming")
+    @Label("Villager Handler Timing")
+    @Description("Time spent in a VillagerModifications handler")
+    @Category({"Minecraft", "VillagerModifications"})
+    @StackTrace(false)
+    static final class HandlerTimingEvent extends Event {
+        @Label("Handler")
+        String handler;
+
+        @Label("Handler Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long nanos; //Not named duration, which is a built in field of every event
+    }
+
+    @Name("xy.villagermodifications.TradeCounters")
+    @Label("Villager Trade Counters")
+    @Description("Cumulative VillagerModifications rewrite counters")
+    @Category({"Minecraft", "VillagerModifications"})
+    @Period("1 s")
+    @StackTrace(false)
+    static final class TradeCountersEvent extends Event {
+        @Label("Recipes Rewritten")
+        long recipesRewritten;
+
+        @Label("Enchantments Replaced")
+        long enchantmentsReplaced;
+
+        @Label("Replenish Price Clamps")
+        long replenishClamps;
+
+        @Label("Whitelist Hits")
+        long whitelistHits;
+
+        @Label("Interactions Coalesced")
+        long interactionsCoalesced;
+
+        @Label("Stale Background Updates")
+        long staleUpdates;
+    }
+}
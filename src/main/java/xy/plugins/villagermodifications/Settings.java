@@ -0,0 +1,163 @@
+package xy.plugins.villagermodifications;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Immutable snapshot of config.yml and everything compiled from it. Loaded off the main thread and published
+ * with a single write, so handlers which read the snapshot once always see a consistent set of settings.
+ */
+final class Settings {
+    private final FileConfiguration config;
+    private final int generation;
+    private SettingsDiff diff; //Set once before publishing
+
+    private final boolean limitBookMinPrices;
+    private final boolean eagerTrades;
+    private final long coalesceWindowMillis;
+    private final boolean asyncTrades;
+    private final boolean deterministicRandom;
+    private final long randomSalt;
+    private final EnchantmentTables enchantmentTables;
+    private final TradeRuleTable tradeRules;
+    private final BookTradePlanner bookPlanner;
+    private final DemandPricing demandPricing;
+
+    private Settings(FileConfiguration config, EnchantmentCatalog catalog, DemandPricing demandPricing, Logger logger) {
+        this.config = config;
+        this.generation = computeGeneration(config, catalog);
+
+        this.limitBookMinPrices = config.getBoolean("enchantments.limit-min-prices", false);
+        this.eagerTrades = config.getBoolean("trades.eager", false);
+        this.coalesceWindowMillis = config.getLong("trades.coalesce-window", 2) * 50;
+        this.asyncTrades = config.getBoolean("reconcile.async", true);
+        this.deterministicRandom = config.getString("enchantments.random", "shared").equalsIgnoreCase("villager");
+        this.randomSalt = config.getLong("enchantments.random-salt", 0);
+        this.demandPricing = config.getBoolean("demand-pricing.enabled", false) ? demandPricing : null;
+
+        this.enchantmentTables = EnchantmentTables.compile(
+                config.getConfigurationSection("enchantments.min-villager-levels"),
+                config.getConfigurationSection("enchantments.pricing"), catalog, logger);
+        this.tradeRules = TradeRuleTable.compile(config, catalog, logger);
+        this.bookPlanner = new BookTradePlanner(enchantmentTables, config.getBoolean("enchantments.limit-max-trades", false),
+                                                limitBookMinPrices, this.demandPricing);
+    }
+
+    /**
+     * Parses and compiles config.yml, read from the local file or a shared config store.
+     * Unlike {@link YamlConfiguration#loadConfiguration(java.io.File)}, invalid YAML fails the load rather than
+     * producing an empty config.
+     * @param demandPricing used if enabled in the config
+     */
+    static Settings parse(String yaml, EnchantmentCatalog catalog, DemandPricing demandPricing, Logger logger)
+            throws InvalidConfigurationException {
+        YamlConfiguration config = new YamlConfiguration();
+        config.loadFromString(yaml);
+
+        return new Settings(config, catalog, demandPricing, logger);
+    }
+
+    static Settings of(FileConfiguration config, EnchantmentCatalog catalog, Logger logger) {
+        return new Settings(config, catalog, null, logger);
+    }
+
+    //Hash of the sections trade processing depends on, included in trade fingerprints so rule changes invalidate them.
+    //Map hashes are independent of key order and stable across restarts. Trade tags hold catalog ids,
+    //so the enchantment order is included too, in case the registry changed between restarts.
+    private static int computeGeneration(ConfigurationSection config, EnchantmentCatalog catalog) {
+        int hash = 31 * TradeTags.LAYOUT_VERSION + catalog.orderHash();
+
+        for (String section : new String[] {"enchantments", "selling", "buying"}) {
+            hash = 31 * hash + leafValues(config.getConfigurationSection(section)).hashCode();
+        }
+
+        return hash;
+    }
+
+    //All non section values, keyed by path relative to the given section
+    static Map<String, Object> leafValues(ConfigurationSection section) {
+        Map<String, Object> values = new HashMap<>();
+
+        if(section != null) {
+            for (Map.Entry<String, Object> entry : section.getValues(true).entrySet()) {
+                if(!(entry.getValue() instanceof ConfigurationSection)) {
+                    values.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        return values;
+    }
+
+    FileConfiguration getConfig() {
+        return config;
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return the changes from the settings this snapshot replaced, or null if it was the first load
+     */
+    SettingsDiff getDiff() {
+        return diff;
+    }
+
+    /**
+     * Diffs against the settings this snapshot is about to replace. Must be called on the global region thread
+     * before publishing, as another reload may have been published since this snapshot was parsed.
+     */
+    void diffAgainst(Settings previous) {
+        this.diff = SettingsDiff.compute(previous, this);
+    }
+
+    boolean isLimitBookMinPrices() {
+        return limitBookMinPrices;
+    }
+
+    boolean isEagerTrades() {
+        return eagerTrades;
+    }
+
+    long getCoalesceWindowMillis() {
+        return coalesceWindowMillis;
+    }
+
+    boolean isAsyncTrades() {
+        return asyncTrades;
+    }
+
+    boolean isDeterministicRandom() {
+        return deterministicRandom;
+    }
+
+    long getRandomSalt() {
+        return randomSalt;
+    }
+
+    EnchantmentTables getEnchantmentTables() {
+        return enchantmentTables;
+    }
+
+    /**
+     * @return the demand pricing engine, or null if disabled
+     */
+    DemandPricing getDemandPricing() {
+        return demandPricing;
+    }
+
+    TradeRuleTable getTradeRules() {
+        return tradeRules;
+    }
+
+    BookTradePlanner getBookPlanner() {
+        return bookPlanner;
+    }
+}
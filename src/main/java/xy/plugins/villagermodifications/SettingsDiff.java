@@ -0,0 +1,167 @@
+package xy.plugins.villagermodifications;
+
+import org.bukkit.Material;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.MerchantRecipe;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Changes to trade processing between two settings snapshots.
+ *
+ * <p>Processing only rewrites books not yet checked, which always changes a villager's fingerprint, and applies rules
+ * matched by the current result and first ingredient. So a villager whose fingerprint matched the previous settings,
+ * and has no recipes matching a changed rule, would be left unchanged by processing. Its fingerprint and tags
+ * can be moved to the new generation without decoding any item meta.</p>
+ */
+final class SettingsDiff {
+    private final int previousGeneration;
+    private final List<String> changes;
+    private final Set<Material> materials; //Materials with changed rules
+    private final boolean books; //Whether enchanted book rules or minimum prices changed
+
+    private SettingsDiff(int previousGeneration, List<String> changes, Set<Material> materials, boolean books) {
+        this.previousGeneration = previousGeneration;
+        this.changes = changes;
+        this.materials = materials;
+        this.books = books;
+    }
+
+    static SettingsDiff compute(Settings previous, Settings current) {
+        List<String> changes = new ArrayList<>();
+        Set<Material> materials = EnumSet.noneOf(Material.class);
+        boolean books = false;
+
+        for (String name : new String[] {"selling", "buying"}) {
+            ConfigurationSection before = previous.getConfig().getConfigurationSection(name);
+            ConfigurationSection after = current.getConfig().getConfigurationSection(name);
+            Set<String> keys = new TreeSet<>();
+
+            if(before != null) {
+                keys.addAll(before.getKeys(false));
+            }
+
+            if(after != null) {
+                keys.addAll(after.getKeys(false));
+            }
+
+            for (String key : keys) {
+                ConfigurationSection ruleBefore = before != null ? before.getConfigurationSection(key) : null;
+                ConfigurationSection ruleAfter = after != null ? after.getConfigurationSection(key) : null;
+
+                if(Objects.equals(values(ruleBefore), values(ruleAfter))) {
+                    continue;
+                }
+
+                changes.add(name + "." + key + (ruleBefore == null ? " added" : ruleAfter == null ? " removed" : " changed"));
+
+                Material material = Material.getMaterial(key);
+
+                if(material != null) {
+                    materials.add(material);
+                } else {
+                    books = true;
+                }
+            }
+        }
+
+        Map<String, Object> levelsBefore = Settings.leafValues(
+                previous.getConfig().getConfigurationSection("enchantments.min-villager-levels"));
+        Map<String, Object> levelsAfter = Settings.leafValues(
+                current.getConfig().getConfigurationSection("enchantments.min-villager-levels"));
+        Set<String> enchantments = new TreeSet<>(levelsBefore.keySet());
+        enchantments.addAll(levelsAfter.keySet());
+
+        for (String enchantment : enchantments) {
+            Object before = levelsBefore.get(enchantment);
+            Object after = levelsAfter.get(enchantment);
+
+            if(!Objects.equals(before, after)) {
+                changes.add("min villager level of " + enchantment + " " + (before != null ? before : "unset")
+                                    + " -> " + (after != null ? after : "unset"));
+            }
+        }
+
+        //Restock floors are stored in trade tags, so any pricing change needs books retagged
+        ConfigurationSection pricingBefore = previous.getConfig().getConfigurationSection("enchantments.pricing");
+        ConfigurationSection pricingAfter = current.getConfig().getConfigurationSection("enchantments.pricing");
+        Set<String> curves = new TreeSet<>();
+
+        if(pricingBefore != null) {
+            curves.addAll(pricingBefore.getKeys(false));
+        }
+
+        if(pricingAfter != null) {
+            curves.addAll(pricingAfter.getKeys(false));
+        }
+
+        for (String curve : curves) {
+            ConfigurationSection before = pricingBefore != null ? pricingBefore.getConfigurationSection(curve) : null;
+            ConfigurationSection after = pricingAfter != null ? pricingAfter.getConfigurationSection(curve) : null;
+
+            if(!Objects.equals(values(before), values(after))) {
+                changes.add("enchantments.pricing." + curve + (before == null ? " added" : after == null ? " removed" : " changed"));
+                books = true;
+            }
+        }
+
+        if(previous.isLimitBookMinPrices() != current.isLimitBookMinPrices()) {
+            changes.add("enchantments.limit-min-prices " + current.isLimitBookMinPrices());
+            books = true;
+        }
+
+        compare(changes, previous, current, "enchantments.limit-max-trades");
+        compare(changes, previous, current, "enchantments.random");
+        compare(changes, previous, current, "enchantments.random-salt");
+
+        return new SettingsDiff(previous.getGeneration(), changes, materials, books);
+    }
+
+    private static Map<String, Object> values(ConfigurationSection section) {
+        return section != null ? Settings.leafValues(section) : null;
+    }
+
+    private static void compare(List<String> changes, Settings previous, Settings current, String path) {
+        Object before = previous.getConfig().get(path);
+        Object after = current.getConfig().get(path);
+
+        if(!Objects.equals(before, after)) {
+            changes.add(path + " " + before + " -> " + after);
+        }
+    }
+
+    int getPreviousGeneration() {
+        return previousGeneration;
+    }
+
+    List<String> getChanges() {
+        return changes;
+    }
+
+    /**
+     * Whether any of the recipes may be changed by processing with the new settings, checking item types only.
+     */
+    boolean affects(List<MerchantRecipe> recipes) {
+        for (MerchantRecipe recipe : recipes) {
+            ItemStack result = recipe.getResult();
+
+            if(books && result.getType() == Material.ENCHANTED_BOOK) {
+                return true;
+            }
+
+            if(!materials.isEmpty() && (materials.contains(result.getType())
+                    || materials.contains(recipe.getIngredients().getFirst().getType()))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,105 @@
+package xy.plugins.villagermodifications;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Config shared between servers through a {@link SqlDatabase}. The whole config.yml is stored as a single row,
+ * and servers poll its version, passing configs published by other servers to a listener.
+ */
+final class SqlConfigStore implements ConfigStore {
+    private static final String VERSION = "config";
+
+    private final SqlDatabase database;
+    private final Logger logger;
+    private final Consumer<String> listener;
+    private final ScheduledFuture<?> pollTask;
+
+    private long version; //Only accessed from the database thread
+
+    SqlConfigStore(SqlDatabase database, Logger logger, long pollIntervalMillis, Consumer<String> listener) {
+        this.database = database;
+        this.logger = logger;
+        this.listener = listener;
+        this.pollTask = database.schedule("poll shared config", this::poll, pollIntervalMillis);
+    }
+
+    @Override
+    public String read() throws IOException {
+        try {
+            return database.call(connection -> {
+                version = SqlDatabase.getVersion(connection, VERSION);
+                return readContent(connection, false);
+            });
+        } catch (SQLException e) {
+            throw new IOException("Failed to read shared config", e);
+        }
+    }
+
+    @Override
+    public void publish(String yaml) {
+        database.execute("publish shared config", connection -> SqlDatabase.transaction(connection, c -> {
+            long latest = SqlDatabase.getVersion(c, VERSION) + 1;
+
+            try (PreparedStatement update = c.prepareStatement("UPDATE vm_config SET node = ?, content = ? WHERE id = 0")) {
+                update.setString(1, database.getNode());
+                update.setString(2, yaml);
+
+                if (update.executeUpdate() == 0) {
+                    try (PreparedStatement insert = c.prepareStatement(
+                            "INSERT INTO vm_config (id, node, content) VALUES (0, ?, ?)")) {
+                        insert.setString(1, database.getNode());
+                        insert.setString(2, yaml);
+                        insert.executeUpdate();
+                    }
+                }
+            }
+
+            SqlDatabase.setVersion(c, VERSION, latest);
+            version = latest;
+            logger.info("Published config.yml to the database");
+
+            return null;
+        }));
+    }
+
+    @Override
+    public void close() {
+        pollTask.cancel(false);
+    }
+
+    private Void poll(Connection connection) throws SQLException {
+        long latest = SqlDatabase.getVersion(connection, VERSION);
+
+        if (latest <= version) {
+            return null;
+        }
+
+        version = latest;
+        String content = readContent(connection, true);
+
+        if (content != null) {
+            listener.accept(content);
+        }
+
+        return null;
+    }
+
+    //Reads the shared config, optionally skipping it if it was published by this server
+    private String readContent(Connection connection, boolean otherNodes) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT node, content FROM vm_config WHERE id = 0");
+             ResultSet result = statement.executeQuery()) {
+            if (!result.next() || (otherNodes && result.getString(1).equals(database.getNode()))) {
+                return null;
+            }
+
+            return result.getString(2);
+        }
+    }
+}
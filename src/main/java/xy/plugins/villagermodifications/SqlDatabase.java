@@ -0,0 +1,208 @@
+package xy.plugins.villagermodifications;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Shared database for the sql whitelist and config stores, e.g. an SQLite file on storage shared by several servers.
+ * All statements run on a single background thread owning the connection. Each kind of shared data has a row in
+ * vm_versions, bumped with every change, so servers can cheaply poll for changes made by others.
+ */
+final class SqlDatabase {
+    private static final String[] SCHEMA = {
+            "CREATE TABLE IF NOT EXISTS vm_versions (name VARCHAR(32) PRIMARY KEY, version BIGINT NOT NULL)",
+            "CREATE TABLE IF NOT EXISTS vm_whitelist (uuid_most BIGINT NOT NULL, uuid_least BIGINT NOT NULL, "
+                    + "PRIMARY KEY (uuid_most, uuid_least))",
+            "CREATE TABLE IF NOT EXISTS vm_whitelist_changes (version BIGINT PRIMARY KEY, node VARCHAR(36) NOT NULL, "
+                    + "uuid_most BIGINT NOT NULL, uuid_least BIGINT NOT NULL, added INTEGER NOT NULL)",
+            "CREATE TABLE IF NOT EXISTS vm_config (id INTEGER PRIMARY KEY, node VARCHAR(36) NOT NULL, content TEXT NOT NULL)",
+    };
+
+    interface SqlTask<T> {
+        T run(Connection connection) throws SQLException;
+    }
+
+    private final Logger logger;
+    private final String node = UUID.randomUUID().toString(); //Identifies changes made by this server
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "VillagerModifications database");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Connection connection; //Only accessed from the database thread
+
+    private SqlDatabase(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Connects and creates any missing tables, closing the database again if either fails.
+     * SQLite is bundled with the server, other databases such as H2 need their driver adding to the classpath.
+     */
+    static SqlDatabase open(String url, Logger logger) throws SQLException {
+        SqlDatabase database = new SqlDatabase(logger);
+
+        try {
+            database.call(connection -> {
+                Properties properties = new Properties();
+
+                if (url.startsWith("jdbc:sqlite:")) {
+                    try {
+                        Class.forName("org.sqlite.JDBC");
+                    } catch (ClassNotFoundException e) {
+                        throw new SQLException("SQLite driver not found", e);
+                    }
+
+                    //Take the write lock when a transaction starts, so servers writing at once queue instead of failing
+                    properties.setProperty("transaction_mode", "IMMEDIATE");
+                    properties.setProperty("busy_timeout", "10000");
+                }
+
+                database.connection = DriverManager.getConnection(url, properties);
+
+                try (Statement statement = database.connection.createStatement()) {
+                    for (String sql : SCHEMA) {
+                        statement.execute(sql);
+                    }
+                }
+
+                return null;
+            });
+        } catch (SQLException e) {
+            database.close();
+            throw e;
+        }
+
+        return database;
+    }
+
+    String getNode() {
+        return node;
+    }
+
+    /**
+     * Runs a task on the database thread and waits for its result.
+     */
+    <T> T call(SqlTask<T> task) throws SQLException {
+        try {
+            return executor.submit(() -> task.run(connection)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for database", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException sqlException) {
+                throw sqlException;
+            }
+
+            throw new SQLException(e.getCause());
+        }
+    }
+
+    /**
+     * Runs a task on the database thread without waiting, logging any failure.
+     */
+    void execute(String description, SqlTask<?> task) {
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run(connection);
+                } catch (SQLException e) {
+                    logger.severe("Failed to " + description + ": " + e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.severe("Failed to " + description + ": database is closed");
+        }
+    }
+
+    ScheduledFuture<?> schedule(String description, SqlTask<?> task, long periodMillis) {
+        return executor.scheduleWithFixedDelay(() -> {
+            try {
+                task.run(connection);
+            } catch (SQLException e) {
+                logger.severe("Failed to " + description + ": " + e);
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a task in a transaction, rolling back if it fails. Must be called from the database thread.
+     */
+    static <T> T transaction(Connection connection, SqlTask<T> task) throws SQLException {
+        connection.setAutoCommit(false);
+
+        try {
+            T result = task.run(connection);
+            connection.commit();
+            return result;
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    static long getVersion(Connection connection, String name) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT version FROM vm_versions WHERE name = ?")) {
+            statement.setString(1, name);
+
+            try (ResultSet result = statement.executeQuery()) {
+                return result.next() ? result.getLong(1) : 0;
+            }
+        }
+    }
+
+    static void setVersion(Connection connection, String name, long version) throws SQLException {
+        try (PreparedStatement update = connection.prepareStatement("UPDATE vm_versions SET version = ? WHERE name = ?")) {
+            update.setLong(1, version);
+            update.setString(2, name);
+
+            if (update.executeUpdate() > 0) {
+                return;
+            }
+        }
+
+        try (PreparedStatement insert = connection.prepareStatement("INSERT INTO vm_versions (name, version) VALUES (?, ?)")) {
+            insert.setString(1, name);
+            insert.setLong(2, version);
+            insert.executeUpdate();
+        }
+    }
+
+    void close() {
+        executor.execute(() -> {
+            try {
+                if (connection != null) {
+                    connection.close();
+                }
+            } catch (SQLException e) {
+                logger.severe("Failed to close database: " + e);
+            }
+        });
+        executor.shutdown();
+
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                logger.severe("Timed out waiting for database to close");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
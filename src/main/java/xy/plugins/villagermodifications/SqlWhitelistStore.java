@@ -0,0 +1,360 @@
+package xy.plugins.villagermodifications;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.logging.Logger;
+
+/**
+ * Whitelist shared between servers through a {@link SqlDatabase}. Changes are queued and written in batches,
+ * each appended to vm_whitelist_changes under a new version. Servers poll the whitelist version and apply rows made by
+ * other servers since the version they last saw, or reread the whole whitelist if those rows have been pruned.
+ * On close the whitelist is also written to whitelist.yml, which the other stores load when switching away from sql.
+ */
+final class SqlWhitelistStore implements WhitelistStore {
+    private static final String VERSION = "whitelist";
+    private static final long RETAINED_CHANGES = 10000;
+
+    private static final class Change {
+        private final UUID uuid;
+        private final boolean added;
+
+        private Change(UUID uuid, boolean added) {
+            this.uuid = uuid;
+            this.added = added;
+        }
+    }
+
+    private final SqlDatabase database;
+    private final File legacyFile;
+    private final Logger logger;
+    private final long writeIntervalMillis;
+    private final long pollIntervalMillis;
+
+    private final Queue<Change> pending = new ConcurrentLinkedQueue<>();
+    private final List<ScheduledFuture<?>> tasks = new ArrayList<>();
+
+    //Only accessed from the database thread after load
+    private final List<Change> failed = new ArrayList<>(); //Changes from a failed batch, retried first
+    private UuidSet whitelist;
+    private long version; //Latest version applied to the in memory whitelist
+    private boolean loadedFromDatabase; //Whether the whitelist was read from the database, rather than left empty after a failure
+
+    SqlWhitelistStore(SqlDatabase database, File dataFolder, Logger logger, long writeIntervalMillis,
+                      long pollIntervalMillis) {
+        this.database = database;
+        this.legacyFile = new File(dataFolder, "whitelist.yml");
+        this.logger = logger;
+        this.writeIntervalMillis = writeIntervalMillis;
+        this.pollIntervalMillis = pollIntervalMillis;
+    }
+
+    @Override
+    public UuidSet load() {
+        try {
+            whitelist = database.call(connection -> {
+                version = SqlDatabase.getVersion(connection, VERSION);
+                UuidSet loaded = readAll(connection);
+
+                //Nothing has been shared yet, start from this server's whitelist
+                if (version == 0 && loaded.size() == 0 && legacyFile.exists()) {
+                    for (String entry : YamlConfiguration.loadConfiguration(legacyFile).getStringList("whitelist")) {
+                        try {
+                            UUID uuid = UUID.fromString(entry);
+
+                            if (loaded.add(uuid)) {
+                                pending.add(new Change(uuid, true));
+                            }
+                        } catch (IllegalArgumentException ignored) {
+                        }
+                    }
+
+                    logger.info("Copying " + loaded.size() + " whitelisted villagers from whitelist.yml to the database");
+                }
+
+                return loaded;
+            });
+            loadedFromDatabase = true;
+        } catch (SQLException e) {
+            logger.severe("Failed to load whitelist: " + e);
+            whitelist = new UuidSet();
+        }
+
+        tasks.add(database.schedule("save whitelist", this::flush, writeIntervalMillis));
+        tasks.add(database.schedule("poll whitelist", this::poll, pollIntervalMillis));
+
+        return whitelist;
+    }
+
+    @Override
+    public void added(UUID uuid) {
+        pending.add(new Change(uuid, true));
+    }
+
+    @Override
+    public void removed(UUID uuid) {
+        pending.add(new Change(uuid, false));
+    }
+
+    @Override
+    public void changed(Collection<UUID> added, Collection<UUID> removed) {
+        for (UUID uuid : added) {
+            pending.add(new Change(uuid, true));
+        }
+
+        for (UUID uuid : removed) {
+            pending.add(new Change(uuid, false));
+        }
+
+        save();
+    }
+
+    @Override
+    public void save() {
+        database.execute("save whitelist", this::flush);
+    }
+
+    @Override
+    public void close() {
+        for (ScheduledFuture<?> task : tasks) {
+            task.cancel(false);
+        }
+
+        try {
+            database.call(this::flush);
+        } catch (SQLException e) {
+            logger.severe("Failed to save whitelist: " + e);
+        }
+
+        try {
+            database.call(connection -> {
+                writeLocal();
+                return null;
+            });
+        } catch (SQLException e) {
+            logger.severe("Failed to save local whitelist copy: " + e);
+        }
+    }
+
+    //Writes the whitelist as last seen by this server to whitelist.yml, so switching to yaml or journal persistence
+    //starts from it rather than from whatever was there before sql persistence was used
+    private void writeLocal() {
+        if (!loadedFromDatabase) {
+            return;
+        }
+
+        YamlConfiguration local = YamlConfiguration.loadConfiguration(legacyFile);
+        List<String> entries = new ArrayList<>();
+
+        //Keep non-UUID entries, as the yaml store does
+        for (String entry : local.getStringList("whitelist")) {
+            try {
+                UUID.fromString(entry);
+            } catch (IllegalArgumentException e) {
+                entries.add(entry);
+            }
+        }
+
+        for (UUID uuid : whitelist.toList()) {
+            entries.add(uuid.toString());
+        }
+
+        local.set("whitelist", entries);
+
+        try {
+            local.save(legacyFile);
+        } catch (IOException e) {
+            logger.severe("Failed to save local whitelist copy: " + e);
+        }
+    }
+
+    //Writes all queued changes in one transaction
+    private Void flush(Connection connection) throws SQLException {
+        List<Change> batch = new ArrayList<>(failed);
+        failed.clear();
+
+        Change change;
+
+        while ((change = pending.poll()) != null) {
+            batch.add(change);
+        }
+
+        if (batch.isEmpty()) {
+            return null;
+        }
+
+        try {
+            SqlDatabase.transaction(connection, c -> {
+                long latest = SqlDatabase.getVersion(c, VERSION);
+
+                Map<UUID, Boolean> finalStates = new LinkedHashMap<>(); //Whether each changed villager ends up whitelisted
+
+                try (PreparedStatement log = c.prepareStatement(
+                        "INSERT INTO vm_whitelist_changes (version, node, uuid_most, uuid_least, added) VALUES (?, ?, ?, ?, ?)")) {
+                    for (Change entry : batch) {
+                        log.setLong(1, ++latest);
+                        log.setString(2, database.getNode());
+                        log.setLong(3, entry.uuid.getMostSignificantBits());
+                        log.setLong(4, entry.uuid.getLeastSignificantBits());
+                        log.setInt(5, entry.added ? 1 : 0);
+                        log.addBatch();
+
+                        finalStates.put(entry.uuid, entry.added);
+                    }
+
+                    log.executeBatch();
+                }
+
+                //Delete every changed row first, so adds never conflict with an existing row
+                try (PreparedStatement delete = c.prepareStatement(
+                        "DELETE FROM vm_whitelist WHERE uuid_most = ? AND uuid_least = ?");
+                     PreparedStatement insert = c.prepareStatement(
+                             "INSERT INTO vm_whitelist (uuid_most, uuid_least) VALUES (?, ?)")) {
+                    for (Map.Entry<UUID, Boolean> entry : finalStates.entrySet()) {
+                        UUID uuid = entry.getKey();
+
+                        delete.setLong(1, uuid.getMostSignificantBits());
+                        delete.setLong(2, uuid.getLeastSignificantBits());
+                        delete.addBatch();
+
+                        if (entry.getValue()) {
+                            insert.setLong(1, uuid.getMostSignificantBits());
+                            insert.setLong(2, uuid.getLeastSignificantBits());
+                            insert.addBatch();
+                        }
+                    }
+
+                    delete.executeBatch();
+                    insert.executeBatch();
+                }
+
+                SqlDatabase.setVersion(c, VERSION, latest);
+
+                try (PreparedStatement prune = c.prepareStatement("DELETE FROM vm_whitelist_changes WHERE version <= ?")) {
+                    prune.setLong(1, latest - RETAINED_CHANGES);
+                    prune.executeUpdate();
+                }
+
+                return null;
+            });
+        } catch (SQLException e) {
+            failed.addAll(batch);
+            throw e;
+        }
+
+        return null;
+    }
+
+    //Applies changes made by other servers
+    private Void poll(Connection connection) throws SQLException {
+        flush(connection);
+
+        long latest = SqlDatabase.getVersion(connection, VERSION);
+
+        if (latest <= version) {
+            return null;
+        }
+
+        long oldest;
+
+        try (Statement statement = connection.createStatement();
+             ResultSet result = statement.executeQuery("SELECT MIN(version) FROM vm_whitelist_changes")) {
+            oldest = result.next() ? result.getLong(1) : 0;
+        }
+
+        if (oldest == 0 || oldest > version + 1) {
+            resync(connection);
+        } else {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT node, uuid_most, uuid_least, added FROM vm_whitelist_changes "
+                            + "WHERE version > ? AND version <= ? ORDER BY version")) {
+                statement.setLong(1, version);
+                statement.setLong(2, latest);
+
+                try (ResultSet result = statement.executeQuery()) {
+                    while (result.next()) {
+                        //This server's own changes are already applied, and may have been superseded locally since
+                        if (result.getString(1).equals(database.getNode())) {
+                            continue;
+                        }
+
+                        if (result.getInt(4) != 0) {
+                            whitelist.add(result.getLong(2), result.getLong(3));
+                        } else {
+                            whitelist.remove(result.getLong(2), result.getLong(3));
+                        }
+                    }
+                }
+            }
+        }
+
+        reapplyPending();
+        version = latest;
+        return null;
+    }
+
+    //Changes queued since the flush at the start of a poll aren't in the rows just read, and this server's own rows
+    //are skipped once they are written, so they are applied again over what was read
+    private void reapplyPending() {
+        for (Change change : failed) {
+            apply(change);
+        }
+
+        for (Change change : pending) {
+            apply(change);
+        }
+    }
+
+    private void apply(Change change) {
+        if (change.added) {
+            whitelist.add(change.uuid);
+        } else {
+            whitelist.remove(change.uuid);
+        }
+    }
+
+    //Brings the in memory whitelist in line with the database, after missing pruned changes
+    private void resync(Connection connection) throws SQLException {
+        UuidSet current = readAll(connection);
+
+        for (UUID uuid : whitelist.toList()) {
+            if (!current.contains(uuid)) {
+                whitelist.remove(uuid);
+            }
+        }
+
+        for (UUID uuid : current.toList()) {
+            whitelist.add(uuid);
+        }
+
+        logger.info("Reloaded " + current.size() + " whitelisted villagers from the database");
+    }
+
+    private static UuidSet readAll(Connection connection) throws SQLException {
+        UuidSet loaded = new UuidSet();
+
+        try (Statement statement = connection.createStatement();
+             ResultSet result = statement.executeQuery("SELECT uuid_most, uuid_least FROM vm_whitelist")) {
+            while (result.next()) {
+                loaded.add(result.getLong(1), result.getLong(2));
+            }
+        }
+
+        return loaded;
+    }
+}
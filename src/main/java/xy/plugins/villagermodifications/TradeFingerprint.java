@@ -0,0 +1,48 @@
+package xy.plugins.villagermodifications;
+
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.MerchantRecipe;
+
+import java.util.List;
+
+/**
+ * Compact hash of a villager's processed trades, stored in its persistent data so unchanged villagers can be skipped.
+ * Only item types, amounts and max uses are hashed, so no item meta needs to be decoded. Current uses are excluded
+ * as they change with every trade. Vanilla only changes trades by adding recipes on level up, which changes the hash.
+ */
+final class TradeFingerprint {
+    private static final long PRIME = 0x100000001B3L;
+
+    private TradeFingerprint() {
+    }
+
+    static long compute(int configGeneration, List<MerchantRecipe> recipes) {
+        long hash = 0xCBF29CE484222325L;
+
+        hash = mix(hash, configGeneration);
+        hash = mix(hash, recipes.size());
+
+        for (MerchantRecipe recipe : recipes) {
+            hash = mix(hash, recipe.getMaxUses());
+            hash = mix(hash, recipe.getResult());
+
+            for (ItemStack ingredient : recipe.getIngredients()) {
+                hash = mix(hash, ingredient);
+            }
+        }
+
+        return hash;
+    }
+
+    private static long mix(long hash, ItemStack item) {
+        if(item == null) {
+            return mix(hash, -1);
+        }
+
+        return mix(mix(hash, item.getType().ordinal()), item.getAmount());
+    }
+
+    private static long mix(long hash, int value) {
+        return (hash ^ value) * PRIME;
+    }
+}
@@ -0,0 +1,309 @@
+package xy.plugins.villagermodifications;
+
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.MerchantRecipe;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntFunction;
+import java.util.random.RandomGenerator;
+
+/**
+ * The trade rewrite and restock logic, independent of where a villager's trades and trade state are stored.
+ * Callers read the recipes, last checked book index, fingerprint and tags from the villager, pass them in, and store
+ * what comes back. The plugin stores them in the villager's persistent data, the load test in stand-ins.
+ */
+final class TradeProcessor {
+    private final BookItems books;
+    private final PluginMetrics metrics;
+
+    TradeProcessor(BookItems books, PluginMetrics metrics) {
+        this.books = books;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Whether trades are unchanged since they were last processed, and were tagged for restocks.
+     * @param fingerprint the fingerprint stored when they were last processed, or null
+     * @param tags the tags stored when they were last processed, or null
+     */
+    static boolean isProcessed(Settings settings, Long fingerprint, int[] tags, List<MerchantRecipe> recipes) {
+        return fingerprint != null && tags != null && fingerprint == TradeFingerprint.compute(settings.getGeneration(), recipes);
+    }
+
+    /**
+     * Whether trades were up to date before the last reload, which didn't change any rules they match. If so the tags
+     * are rebased in place onto the current config generation, and should be stored with a new fingerprint.
+     */
+    static boolean rebase(Settings settings, Long fingerprint, int[] tags, List<MerchantRecipe> recipes) {
+        SettingsDiff diff = settings.getDiff();
+
+        return fingerprint != null && tags != null && diff != null
+                && fingerprint == TradeFingerprint.compute(diff.getPreviousGeneration(), recipes)
+                && !diff.affects(recipes)
+                && TradeTags.rebase(tags, diff.getPreviousGeneration(), settings.getGeneration());
+    }
+
+    /**
+     * Captures a villager's trades for {@link #compute}.
+     * @param lastCheckedIndex last recipe index checked for book level changes, -1 if none
+     * @param detached whether to copy the recipes, so the snapshot can be processed off the villager's thread
+     */
+    static TradeSnapshot snapshot(Settings settings, UUID villagerId, int villagerLevel, int lastCheckedIndex,
+                                  List<MerchantRecipe> recipes, boolean detached) {
+        List<MerchantRecipe> copies = recipes;
+
+        if (detached) {
+            copies = new ArrayList<>(recipes.size());
+
+            for (MerchantRecipe recipe : recipes) {
+                copies.add(TradeRule.copy(recipe, recipe.getResult().clone(), recipe.getMaxUses(), recipe.getIngredients()));
+            }
+        }
+
+        return new TradeSnapshot(settings, villagerId, villagerLevel, lastCheckedIndex, copies, recipes);
+    }
+
+    //Decides every rewrite for a snapshot, without touching the villager. Safe to call from any thread.
+    TradeUpdate compute(TradeSnapshot snapshot) {
+        Settings settings = snapshot.settings;
+        List<MerchantRecipe> recipes = new ArrayList<>(snapshot.recipes);
+        List<BookChange> bookChanges = new ArrayList<>();
+        int lastCheckedIndex = checkBookTrades(snapshot, recipes, bookChanges);
+
+        TradeRuleTable tradeRules = settings.getTradeRules();
+        int[] tags = TradeTags.create(settings.getGeneration(), recipes.size());
+
+        for (int pos = 0; pos < recipes.size(); pos++) {
+            MerchantRecipe recipe = recipes.get(pos);
+            TradeRule rule = tradeRules.find(recipe);
+
+            if(rule != null) {
+                MerchantRecipe modified = rule.apply(recipe);
+
+                if(modified != recipe) {
+                    recipes.set(pos, modified);
+
+                    //Tag with the rule a restock would find for the new recipe
+                    recipe = modified;
+                    rule = tradeRules.find(recipe);
+                }
+            }
+
+            int book = getBookCell(recipe);
+            TradeTags.set(tags, pos, recipe, rule, getMinReplenishPrice(settings, recipe, rule, book), book);
+        }
+
+        return new TradeUpdate(snapshot, recipes, lastCheckedIndex,
+                               TradeFingerprint.compute(settings.getGeneration(), recipes), tags, bookChanges);
+    }
+
+    //Updates the recipe list with any changes, adding them to bookChanges, returns the last recipe index checked
+    private int checkBookTrades(TradeSnapshot snapshot, List<MerchantRecipe> recipes, List<BookChange> bookChanges) {
+        long start = System.nanoTime();
+        Settings settings = snapshot.settings;
+        long[] disallowed = settings.getEnchantmentTables().newEnchantmentSet(); //Tracks already present enchantments to prevent multiple offers for the same type
+        int lastCheckedIndex = snapshot.lastCheckedIndex;
+
+        int pos = -1;
+        for (MerchantRecipe recipe : snapshot.recipes) {
+            pos++;
+
+            if (!recipe.getResult().getType().equals(Material.ENCHANTED_BOOK)) {
+                continue;
+            }
+
+            if(pos <= lastCheckedIndex) {
+                books.addTo(recipe.getResult(), disallowed);
+                continue;
+            }
+
+            MerchantRecipe newRecipe = checkBookTrade(settings, snapshot.villagerId, pos, recipe,
+                                                      snapshot.villagerLevel, disallowed, bookChanges);
+
+            if(newRecipe != null) {
+                recipes.set(pos, newRecipe);
+            }
+        }
+
+        metrics.record(PluginMetrics.Handler.CHECK_BOOK_TRADES, start);
+        return pos;
+    }
+
+    /**
+     * Checks the enchantments of a single book trade against the villager level and already offered enchantments,
+     * replacing any which aren't allowed. Enchantments kept or added are added to the disallowed set.
+     * Changes are added to changes, to be recorded once the rewrite is applied.
+     * @return the rewritten recipe, or null if it is unchanged
+     */
+    MerchantRecipe checkBookTrade(Settings settings, UUID villagerId, int recipeIndex, MerchantRecipe recipe,
+                                  int villagerLevel, long[] disallowed, List<BookChange> changes) {
+        List<ItemStack> ingredients = recipe.getIngredients();
+        ItemStack result = recipe.getResult();
+        BookPlan plan = new BookPlan();
+
+        books.read(result, plan);
+
+        boolean changed = settings.getBookPlanner().plan(plan, villagerLevel, disallowed,
+                                                         ingredients.getFirst().getType() == Material.EMERALD,
+                                                         getRandom(settings, villagerId, recipeIndex));
+        boolean enchantmentsChanged = false;
+        boolean acted = false; //Whether the planner did anything worth recording, even if the recipe ends up unchanged
+
+        for (int i = 0; i < plan.size; i++) {
+            enchantmentsChanged |= plan.actions[i] == BookPlan.REPLACED || plan.actions[i] == BookPlan.LEVEL_CHANGED;
+            acted |= plan.actions[i] != BookPlan.KEPT;
+        }
+
+        ItemStack firstItem = ingredients.getFirst(); //Already a copy, so can be modified
+        int oldPrice = firstItem.getAmount();
+        int price = plan.price != BookPlan.KEEP ? plan.price : oldPrice;
+        int maxUses = plan.maxUses != BookPlan.KEEP ? plan.maxUses : recipe.getMaxUses();
+
+        //Price and max uses limits replan every book, often leaving the recipe as it was
+        if(!changed || (!enchantmentsChanged && price == oldPrice && maxUses == recipe.getMaxUses())) {
+            if(acted) {
+                changes.add(new BookChange(recipeIndex, plan, false, oldPrice, oldPrice, recipe.getMaxUses(),
+                                           recipe.getMaxUses()));
+            }
+
+            return null;
+        }
+
+        if(enchantmentsChanged) {
+            result = books.write(result, plan);
+        }
+
+        firstItem.setAmount(price);
+        changes.add(new BookChange(recipeIndex, plan, true, oldPrice, price, recipe.getMaxUses(), maxUses));
+
+        //Copy recipe so we can change the result item
+        return TradeRule.copy(recipe, result, maxUses, ingredients);
+    }
+
+    /**
+     * Adds the enchantments of the enchanted books among the recipes to an enchantment set.
+     */
+    void addOfferedEnchantments(List<MerchantRecipe> recipes, long[] enchantments) {
+        for (MerchantRecipe recipe : recipes) {
+            if(recipe.getResult().getType().equals(Material.ENCHANTED_BOOK)) {
+                books.addTo(recipe.getResult(), enchantments);
+            }
+        }
+    }
+
+    //Book cell of a book's highest level enchantment, or EnchantmentTables.NO_BOOK if it isn't a known book
+    int getBookCell(MerchantRecipe recipe) {
+        return books.getBookCell(recipe.getResult());
+    }
+
+    /**
+     * Finds the tag stored for a recipe when the villager's trades were last processed. The recipe's index is found
+     * by identity, as the server reuses the same recipe instance for an offer. Recipes which can't be found,
+     * or have changed since they were tagged, return {@link TradeTags#UNKNOWN}.
+     * @param tags the tags stored when the trades were last processed, or null
+     * @param recipes the villager's current recipes by index
+     */
+    static int getTradeTag(int[] tags, int configGeneration, MerchantRecipe recipe, int recipeCount,
+                           IntFunction<MerchantRecipe> recipes) {
+        if(tags == null) {
+            return TradeTags.UNKNOWN;
+        }
+
+        for (int i = 0; i < recipeCount; i++) {
+            if(recipes.apply(i) == recipe) {
+                return TradeTags.get(tags, configGeneration, i, recipe);
+            }
+        }
+
+        return TradeTags.UNKNOWN;
+    }
+
+    /**
+     * Prevents a restock from discounting a trade below its minimum price, using its tag if it has one,
+     * or the rules and book tables otherwise.
+     * @return whether the price was clamped
+     */
+    boolean replenish(Settings settings, MerchantRecipe recipe, int tag) {
+        DemandPricing demand = settings.getDemandPricing();
+
+        if(tag == TradeTags.NONE) {
+            return false;
+        } else if(tag != TradeTags.UNKNOWN) {
+            int minPrice = TradeTags.getMinPrice(tag);
+
+            if(demand != null) {
+                minPrice = Math.max(minPrice, demand.getReplenishFloor(TradeTags.getBook(tag),
+                                                                       recipe.getIngredients().getFirst().getAmount()));
+            }
+
+            return clampReplenishedPrice(recipe, minPrice);
+        }
+
+        int book = getBookCell(recipe);
+        boolean clamped = clampReplenishedPrice(recipe, settings.getTradeRules(), getReplenishFloor(settings, recipe, book));
+
+        if(demand != null && recipe.getResult().getType() == Material.ENCHANTED_BOOK) {
+            clamped |= clampReplenishedPrice(recipe, demand.getReplenishFloor(
+                    book, recipe.getIngredients().getFirst().getAmount()));
+        }
+
+        return clamped;
+    }
+
+    //Prevents restocking from discounting a trade below its minimum price, returns whether the price was clamped
+    static boolean clampReplenishedPrice(MerchantRecipe recipe, TradeRuleTable tradeRules, float replenishFloor) {
+        int basePrice = recipe.getIngredients().getFirst().getAmount();
+        TradeRule rule = tradeRules.find(recipe);
+        int minPrice = getMinReplenishPrice(basePrice, replenishFloor, rule);
+
+        if(rule == null && minPrice == 1) {
+            return false;
+        }
+
+        return clampReplenishedPrice(recipe, minPrice);
+    }
+
+    static boolean clampReplenishedPrice(MerchantRecipe recipe, int minPrice) {
+        int basePrice = recipe.getIngredients().getFirst().getAmount();
+        int bonus = recipe.getUses();
+
+        if(bonus < 0 && (basePrice + bonus) < minPrice) {
+            recipe.setUses(-(basePrice - minPrice));
+            return true;
+        }
+
+        return false;
+    }
+
+    static int getMinReplenishPrice(Settings settings, MerchantRecipe recipe, TradeRule rule, int book) {
+        return getMinReplenishPrice(recipe.getIngredients().getFirst().getAmount(),
+                                    getReplenishFloor(settings, recipe, book), rule);
+    }
+
+    //Fraction of the base price a restock may discount a book to, 0 if the recipe isn't a book or books aren't limited
+    private static float getReplenishFloor(Settings settings, MerchantRecipe recipe, int book) {
+        return settings.isLimitBookMinPrices() && recipe.getResult().getType() == Material.ENCHANTED_BOOK
+                ? settings.getEnchantmentTables().getReplenishFloor(book) : 0;
+    }
+
+    //Lowest price a restock may discount a trade to, 1 if the trade isn't limited
+    static int getMinReplenishPrice(int basePrice, float replenishFloor, TradeRule rule) {
+        int minPrice = Math.max(1, Math.round(replenishFloor * basePrice));
+
+        if(rule != null) {
+            minPrice = Math.max(minPrice, rule.getMinCost());
+        }
+
+        return minPrice;
+    }
+
+    //Generator for a book trade's rolls, reproducible per villager and recipe when deterministic random is enabled
+    private static RandomGenerator getRandom(Settings settings, UUID villagerId, int recipeIndex) {
+        return settings.isDeterministicRandom()
+                ? VillagerRandom.forRecipe(settings.getRandomSalt(), villagerId, recipeIndex) : ThreadLocalRandom.current();
+    }
+}
@@ -0,0 +1,101 @@
+package xy.plugins.villagermodifications;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.MerchantRecipe;
+
+import java.util.List;
+
+/**
+ * Immutable, compiled form of a single selling/buying entry in config.yml.
+ */
+final class TradeRule {
+    private static final int UNSET = -1;
+
+    private final int id; //Compact id, unique within a TradeRuleTable
+    private final boolean change;
+    private final int uses; //Replacement max uses, UNSET to keep the current value
+    private final int minCost;
+    private final IngredientRule item1;
+    private final IngredientRule item2;
+    private final IngredientRule result;
+
+    private TradeRule(int id, boolean change, int uses, int minCost, IngredientRule item1, IngredientRule item2, IngredientRule result) {
+        this.id = id;
+        this.change = change;
+        this.uses = uses;
+        this.minCost = minCost;
+        this.item1 = item1;
+        this.item2 = item2;
+        this.result = result;
+    }
+
+    static TradeRule compile(ConfigurationSection config, int id) {
+        return new TradeRule(
+                id,
+                config.getBoolean("change", false),
+                config.isSet("uses") ? config.getInt("uses") : UNSET,
+                config.getInt("item1.minCost", 1),
+                IngredientRule.compile(config.getConfigurationSection("item1")),
+                IngredientRule.compile(config.getConfigurationSection("item2")),
+                IngredientRule.compile(config.getConfigurationSection("result")));
+    }
+
+    int getId() {
+        return id;
+    }
+
+    int getMinCost() {
+        return minCost;
+    }
+
+    /**
+     * @return the rewritten recipe, or the same recipe if the rule doesn't change it
+     */
+    MerchantRecipe apply(MerchantRecipe recipe) {
+        if(!change) {
+            return recipe;
+        }
+
+        List<ItemStack> ingredients = recipe.getIngredients(); //Copied by the server, so only fetched once
+        ItemStack originalResult = recipe.getResult();
+        int maxUses = uses != UNSET ? uses : recipe.getMaxUses();
+
+        if(maxUses == recipe.getMaxUses() && matches(result, originalResult)
+                && matches(item1, ingredients.getFirst()) && matches(item2, ingredients.size() > 1 ? ingredients.get(1) : null)) {
+            return recipe;
+        }
+
+        ingredients.set(0, apply(item1, ingredients.getFirst()));
+
+        if(ingredients.size() > 1) {
+            ingredients.set(1, apply(item2, ingredients.get(1)));
+        }
+
+        ItemStack result = this.result != null ? this.result.applyToResult(originalResult) : originalResult;
+
+        return copy(recipe, result, maxUses, ingredients);
+    }
+
+    /**
+     * Copies a recipe with a new result, max uses and ingredients, keeping its uses, price multiplier, experience,
+     * demand and discounts. Ingredients are copied by the server, so may be shared items.
+     */
+    static MerchantRecipe copy(MerchantRecipe recipe, ItemStack result, int maxUses, List<ItemStack> ingredients) {
+        MerchantRecipe newRecipe = new MerchantRecipe(result, recipe.getUses(), maxUses, recipe.hasExperienceReward(),
+                                                      recipe.getVillagerExperience(), recipe.getPriceMultiplier(),
+                                                      recipe.getDemand(), recipe.getSpecialPrice(),
+                                                      recipe.shouldIgnoreDiscounts());
+        newRecipe.setIngredients(ingredients);
+
+        return newRecipe;
+    }
+
+    private static boolean matches(IngredientRule rule, ItemStack item) {
+        return rule == null || rule.matches(item);
+    }
+
+    private static ItemStack apply(IngredientRule rule, ItemStack originalItem) {
+        return rule != null ? rule.apply(originalItem) : originalItem;
+    }
+}
@@ -0,0 +1,153 @@
+package xy.plugins.villagermodifications;
+
+import org.bukkit.Material;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.enchantments.Enchantment;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.MerchantRecipe;
+import org.bukkit.inventory.meta.EnchantmentStorageMeta;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.logging.Logger;
+
+/**
+ * The selling and buying sections of config.yml, compiled once per load and indexed for constant time lookup.
+ * Material rules are indexed by {@link Material}, enchanted book rules by (enchantment id, level).
+ */
+final class TradeRuleTable {
+    private final Rules selling;
+    private final Rules buying;
+
+    private TradeRuleTable(Rules selling, Rules buying) {
+        this.selling = selling;
+        this.buying = buying;
+    }
+
+    static TradeRuleTable compile(ConfigurationSection config, EnchantmentCatalog catalog, Logger logger) {
+        int[] nextId = {0};
+
+        return new TradeRuleTable(
+                Rules.compile(config.getConfigurationSection("selling"), "selling", catalog, logger, nextId),
+                Rules.compile(config.getConfigurationSection("buying"), "buying", catalog, logger, nextId));
+    }
+
+    /**
+     * Finds the rule for a recipe, checking the result against the selling rules first,
+     * then the first ingredient against the buying rules.
+     * @return the matching rule, or null if the recipe isn't configured
+     */
+    TradeRule find(MerchantRecipe recipe) {
+        TradeRule rule = selling.find(recipe.getResult());
+        return rule != null ? rule : buying.find(recipe.getIngredients().getFirst());
+    }
+
+    /**
+     * Finds the selling rule for an enchanted book result by enchantment id and level.
+     * @return the matching rule, or null if the book isn't configured
+     */
+    TradeRule findSellingBook(int id, int level) {
+        return selling.find(id, level);
+    }
+
+    private static final class Rules {
+        private final EnchantmentCatalog catalog;
+        private final Map<Material, TradeRule> byMaterial;
+        private final TradeRule[][] byEnchantment; //Indexed by [enchantment id][level], null where unconfigured
+        private final boolean hasEnchantmentRules;
+
+        private Rules(EnchantmentCatalog catalog, Map<Material, TradeRule> byMaterial, TradeRule[][] byEnchantment) {
+            this.catalog = catalog;
+            this.byMaterial = byMaterial;
+            this.byEnchantment = byEnchantment;
+            this.hasEnchantmentRules = Arrays.stream(byEnchantment).anyMatch(Objects::nonNull);
+        }
+
+        static Rules compile(ConfigurationSection section, String name, EnchantmentCatalog catalog, Logger logger,
+                             int[] nextId) {
+            Map<Material, TradeRule> byMaterial = new EnumMap<>(Material.class);
+            TradeRule[][] byEnchantment = new TradeRule[catalog.size()][];
+
+            if(section != null) {
+                for (String key : section.getKeys(false)) {
+                    ConfigurationSection ruleConfig = section.getConfigurationSection(key);
+
+                    if(ruleConfig == null) {
+                        continue;
+                    }
+
+                    TradeRule rule = TradeRule.compile(ruleConfig, nextId[0]++);
+                    Material material = Material.getMaterial(key);
+
+                    if(material != null) {
+                        byMaterial.put(material, rule);
+                        continue;
+                    }
+
+                    //Enchanted book rules are keyed as <enchantment>_<level>
+                    int separator = key.lastIndexOf('_');
+                    int id = separator > 0 ? catalog.id(key.substring(0, separator)) : -1;
+                    int level = separator > 0 ? parseLevel(key.substring(separator + 1)) : -1;
+
+                    if(id < 0 || level < 0) {
+                        logger.warning("Invalid trade rule " + name + "." + key);
+                        continue;
+                    }
+
+                    TradeRule[] levels = byEnchantment[id];
+
+                    if(levels == null || levels.length <= level) {
+                        levels = levels == null ? new TradeRule[level + 1] : Arrays.copyOf(levels, level + 1);
+                        byEnchantment[id] = levels;
+                    }
+
+                    levels[level] = rule;
+                }
+            }
+
+            return new Rules(catalog, byMaterial, byEnchantment);
+        }
+
+        private static int parseLevel(String level) {
+            try {
+                return Integer.parseInt(level);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        TradeRule find(ItemStack target) {
+            if(!target.getType().equals(Material.ENCHANTED_BOOK)) {
+                return byMaterial.get(target.getType());
+            }
+
+            //Avoid decoding the item meta when no book rules exist
+            if(!hasEnchantmentRules) {
+                return null;
+            }
+
+            EnchantmentStorageMeta meta = (EnchantmentStorageMeta) target.getItemMeta();
+
+            for (Map.Entry<Enchantment, Integer> entry : meta.getStoredEnchants().entrySet()) {
+                TradeRule rule = find(catalog.id(entry.getKey()), entry.getValue());
+
+                if(rule != null) {
+                    return rule;
+                }
+            }
+
+            return null;
+        }
+
+        TradeRule find(int id, int level) {
+            if(id < 0 || id >= byEnchantment.length) {
+                return null;
+            }
+
+            TradeRule[] levels = byEnchantment[id];
+            return levels != null && level >= 0 && level < levels.length ? levels[level] : null;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package xy.plugins.villagermodifications;
+
+import org.bukkit.inventory.MerchantRecipe;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A villager's trades and trade state captured on its owning thread, for computing a {@link TradeUpdate} on any thread.
+ * Detached snapshots hold copies of the recipes, with their result items cloned, so nothing computed from them reads
+ * the live villager. The original recipe instances are kept to check the villager is unchanged before applying.
+ */
+final class TradeSnapshot {
+    final Settings settings;
+    final UUID villagerId;
+    final int villagerLevel;
+    final int lastCheckedIndex; //Last recipe index checked for book level changes, -1 if none
+    final List<MerchantRecipe> recipes; //Read by the computation, unmodifiable
+    final List<MerchantRecipe> originals; //The villager's recipe instances, the same as recipes unless detached
+
+    TradeSnapshot(Settings settings, UUID villagerId, int villagerLevel, int lastCheckedIndex,
+                  List<MerchantRecipe> recipes, List<MerchantRecipe> originals) {
+        this.settings = settings;
+        this.villagerId = villagerId;
+        this.villagerLevel = villagerLevel;
+        this.lastCheckedIndex = lastCheckedIndex;
+        this.recipes = List.copyOf(recipes);
+        this.originals = originals == recipes ? this.recipes : List.copyOf(originals);
+    }
+}
@@ -0,0 +1,126 @@
+package xy.plugins.villagermodifications;
+
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.MerchantRecipe;
+
+import java.util.List;
+
+/**
+ * Per recipe tags stored in a villager's persistent data when its trades are processed, so restocks can clamp prices
+ * without looking up rules or decoding enchanted book meta. Each tag packs the matching rule id, the book's
+ * {@link EnchantmentTables#cell book cell} and the precomputed minimum price, alongside a check of the recipe's item types and
+ * amounts so recipes changed since are not trusted.
+ * Tags are laid out as [config generation, check 0, tag 0, check 1, tag 1, ...].
+ */
+final class TradeTags {
+    static final int UNKNOWN = -1; //No valid tag, the recipe must be checked against the rules
+    static final int NONE = 0; //No rule and no minimum price, nothing to clamp
+
+    static final int LAYOUT_VERSION = 2; //Included in the config generation, so tags in an older layout are stale
+
+    private static final int PRICE_MASK = 0xFF;
+    private static final int BOOK_SHIFT = 8;
+    private static final int BOOK_MASK = 0xFFF;
+    private static final int RULE_SHIFT = 20;
+    private static final int MAX_RULE = 0xFFE; //Rule id + 1 of 0xFFF could produce UNKNOWN
+
+    private TradeTags() {
+    }
+
+    static int[] create(int configGeneration, int recipes) {
+        int[] tags = new int[1 + recipes * 2];
+        tags[0] = configGeneration;
+        return tags;
+    }
+
+    /**
+     * Tags a recipe. Recipes whose rule id, book cell or min price don't fit are tagged {@link #UNKNOWN},
+     * so restocks check them in full.
+     * @param book the recipe's book cell, or {@link EnchantmentTables#NO_BOOK}
+     */
+    static void set(int[] tags, int index, MerchantRecipe recipe, TradeRule rule, int minPrice, int book) {
+        int ruleValue = rule != null ? rule.getId() + 1 : 0;
+        int tag;
+
+        if(rule == null && minPrice == 1 && book < 0) {
+            tag = NONE;
+        } else if(ruleValue > MAX_RULE || book + 1 > BOOK_MASK || minPrice > PRICE_MASK) {
+            tag = UNKNOWN;
+        } else {
+            tag = ruleValue << RULE_SHIFT | (book + 1) << BOOK_SHIFT | minPrice;
+        }
+
+        tags[1 + index * 2] = check(recipe);
+        tags[2 + index * 2] = tag;
+    }
+
+    /**
+     * Appends a tag for a recipe added after the tags were created.
+     * @return the extended tags, or null if the existing tags don't cover all previous recipes
+     */
+    static int[] append(int[] tags, int configGeneration, List<MerchantRecipe> previous, MerchantRecipe recipe,
+                        TradeRule rule, int minPrice, int book) {
+        if(tags == null && previous.isEmpty()) {
+            tags = create(configGeneration, 0);
+        }
+
+        if(tags == null || tags.length != 1 + previous.size() * 2 || tags[0] != configGeneration) {
+            return null;
+        }
+
+        int[] extended = new int[tags.length + 2];
+        System.arraycopy(tags, 0, extended, 0, tags.length);
+        set(extended, previous.size(), recipe, rule, minPrice, book);
+
+        return extended;
+    }
+
+    /**
+     * @return the tag for the recipe at the given index, or {@link #UNKNOWN} if the tags are stale or missing
+     */
+    static int get(int[] tags, int configGeneration, int index, MerchantRecipe recipe) {
+        if(tags == null || index < 0 || tags.length < 3 + index * 2 || tags[0] != configGeneration
+                || tags[1 + index * 2] != check(recipe)) {
+            return UNKNOWN;
+        }
+
+        return tags[2 + index * 2];
+    }
+
+    /**
+     * Moves tags to a new config generation, for villagers unaffected by a reload.
+     * @return whether the tags were for the previous generation and have been moved
+     */
+    static boolean rebase(int[] tags, int previousGeneration, int configGeneration) {
+        if(tags == null || tags.length == 0 || tags[0] != previousGeneration) {
+            return false;
+        }
+
+        tags[0] = configGeneration;
+        return true;
+    }
+
+    static int getMinPrice(int tag) {
+        return tag == NONE ? 1 : tag & PRICE_MASK;
+    }
+
+    static int getBook(int tag) {
+        return ((tag >>> BOOK_SHIFT) & BOOK_MASK) - 1;
+    }
+
+    //Only item types, amounts and max uses, like TradeFingerprint, so no item meta is decoded
+    private static int check(MerchantRecipe recipe) {
+        int hash = recipe.getMaxUses();
+        hash = 31 * hash + check(recipe.getResult());
+
+        for (ItemStack ingredient : recipe.getIngredients()) {
+            hash = 31 * hash + check(ingredient);
+        }
+
+        return hash;
+    }
+
+    private static int check(ItemStack item) {
+        return item == null ? -1 : item.getType().ordinal() * 128 + item.getAmount();
+    }
+}
@@ -0,0 +1,34 @@
+package xy.plugins.villagermodifications;
+
+import org.bukkit.inventory.MerchantRecipe;
+
+import java.util.List;
+
+/**
+ * The result of processing a {@link TradeSnapshot}: the villager's recipes after book and trade rules, and the
+ * persistent data to store with them. Recipes which are the same instance as in the snapshot are unchanged.
+ * Book changes are only recorded to metrics, the debug trace and the audit log when the update is applied, so an update
+ * discarded as stale records nothing.
+ */
+final class TradeUpdate {
+    final TradeSnapshot snapshot;
+    final List<MerchantRecipe> recipes;
+    final int lastCheckedIndex;
+    final long fingerprint;
+    final int[] tags;
+    final List<BookChange> bookChanges;
+
+    TradeUpdate(TradeSnapshot snapshot, List<MerchantRecipe> recipes, int lastCheckedIndex, long fingerprint, int[] tags,
+                List<BookChange> bookChanges) {
+        this.snapshot = snapshot;
+        this.recipes = recipes;
+        this.lastCheckedIndex = lastCheckedIndex;
+        this.fingerprint = fingerprint;
+        this.tags = tags;
+        this.bookChanges = bookChanges;
+    }
+
+    boolean isChanged(int index) {
+        return recipes.get(index) != snapshot.recipes.get(index);
+    }
+}
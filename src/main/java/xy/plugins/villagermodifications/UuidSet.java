@@ -0,0 +1,242 @@
+package xy.plugins.villagermodifications;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Thread safe, open-addressed hash set of UUIDs, stored as their two long halves.
+ * Lookups are constant time, don't allocate and are usually lock free, using an optimistic read which is only
+ * retried under a read lock if a write happened concurrently.
+ * Uses linear probing with backward shift deletion, so no tombstones.
+ */
+final class UuidSet {
+    private static final int INITIAL_CAPACITY = 64;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private final StampedLock lock = new StampedLock();
+    private Table table = new Table(INITIAL_CAPACITY); //Replaced as a whole on resize, so readers always see consistent arrays
+    private int size;
+
+    boolean contains(UUID uuid) {
+        return contains(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    boolean contains(long msb, long lsb) {
+        long stamp = lock.tryOptimisticRead();
+
+        if(stamp != 0) {
+            boolean result = table.contains(msb, lsb);
+
+            if(lock.validate(stamp)) {
+                return result;
+            }
+        }
+
+        stamp = lock.readLock();
+
+        try {
+            return table.contains(msb, lsb);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    boolean add(UUID uuid) {
+        return add(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    boolean add(long msb, long lsb) {
+        long stamp = lock.writeLock();
+
+        try {
+            if(!table.add(msb, lsb)) {
+                return false;
+            }
+
+            if(++size > table.used.length * LOAD_FACTOR) {
+                table = table.resize(table.used.length << 1);
+            }
+
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    boolean remove(UUID uuid) {
+        return remove(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    boolean remove(long msb, long lsb) {
+        long stamp = lock.writeLock();
+
+        try {
+            if(!table.remove(msb, lsb)) {
+                return false;
+            }
+
+            size--;
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    int size() {
+        long stamp = lock.readLock();
+
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    void clear() {
+        long stamp = lock.writeLock();
+
+        try {
+            table = new Table(INITIAL_CAPACITY);
+            size = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    UuidSet copy() {
+        UuidSet copy = new UuidSet();
+        long stamp = lock.readLock();
+
+        try {
+            copy.table = table.resize(table.used.length);
+            copy.size = size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+
+        return copy;
+    }
+
+    List<UUID> toList() {
+        long stamp = lock.readLock();
+
+        try {
+            List<UUID> result = new ArrayList<>(size);
+            Table table = this.table;
+
+            for(int slot = 0; slot < table.used.length; slot++) {
+                if(table.used[slot]) {
+                    result.add(new UUID(table.most[slot], table.least[slot]));
+                }
+            }
+
+            return result;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private static final class Table {
+        private final long[] most;
+        private final long[] least;
+        private final boolean[] used;
+        private final int mask;
+
+        private Table(int capacity) {
+            most = new long[capacity];
+            least = new long[capacity];
+            used = new boolean[capacity];
+            mask = capacity - 1;
+        }
+
+        //Always terminates, even when racing a writer, as the table is never more than half full
+        private boolean contains(long msb, long lsb) {
+            int slot = hash(msb, lsb) & mask;
+
+            while (used[slot]) {
+                if(most[slot] == msb && least[slot] == lsb) {
+                    return true;
+                }
+
+                slot = (slot + 1) & mask;
+            }
+
+            return false;
+        }
+
+        private boolean add(long msb, long lsb) {
+            int slot = hash(msb, lsb) & mask;
+
+            while (used[slot]) {
+                if(most[slot] == msb && least[slot] == lsb) {
+                    return false;
+                }
+
+                slot = (slot + 1) & mask;
+            }
+
+            most[slot] = msb;
+            least[slot] = lsb;
+            used[slot] = true;
+            return true;
+        }
+
+        private boolean remove(long msb, long lsb) {
+            int slot = hash(msb, lsb) & mask;
+
+            while (used[slot]) {
+                if(most[slot] == msb && least[slot] == lsb) {
+                    shiftBack(slot);
+                    return true;
+                }
+
+                slot = (slot + 1) & mask;
+            }
+
+            return false;
+        }
+
+        //Moves following entries of the probe sequence back into the freed slot, so lookups never hit a gap
+        private void shiftBack(int slot) {
+            int free = slot;
+            int next = (free + 1) & mask;
+
+            while (used[next]) {
+                int home = hash(most[next], least[next]) & mask;
+
+                //Entry can move if its home slot isn't cyclically within (free, next]
+                if(((next - home) & mask) >= ((next - free) & mask)) {
+                    most[free] = most[next];
+                    least[free] = least[next];
+                    free = next;
+                }
+
+                next = (next + 1) & mask;
+            }
+
+            used[free] = false;
+        }
+
+        private Table resize(int capacity) {
+            Table resized = new Table(capacity);
+
+            for(int slot = 0; slot < used.length; slot++) {
+                if(used[slot]) {
+                    resized.add(most[slot], least[slot]);
+                }
+            }
+
+            return resized;
+        }
+    }
+
+    private static int hash(long msb, long lsb) {
+        long h = msb * 0x9E3779B97F4A7C15L ^ lsb;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
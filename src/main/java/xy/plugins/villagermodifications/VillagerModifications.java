@@ -1,11 +1,14 @@
 package xy.plugins.villagermodifications;
 
+import io.papermc.paper.event.player.PlayerTradeEvent;
+import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.NamespacedKey;
-import org.bukkit.Registry;
+import org.bukkit.World;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.enchantments.Enchantment;
@@ -14,6 +17,7 @@ import org.bukkit.entity.Villager;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.entity.VillagerAcquireTradeEvent;
 import org.bukkit.event.entity.VillagerCareerChangeEvent;
 import org.bukkit.event.entity.VillagerReplenishTradeEvent;
 import org.bukkit.event.player.PlayerInteractEntityEvent;
@@ -21,500 +25,815 @@ import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.MerchantRecipe;
 import org.bukkit.inventory.meta.EnchantmentStorageMeta;
-import org.bukkit.persistence.PersistentDataType;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongConsumer;
+import java.util.function.Predicate;
 
 public final class VillagerModifications extends JavaPlugin implements Listener {
-    private File whitelistFile;
-
-    private FileConfiguration config;
-    private FileConfiguration whitelistConfig;
-
-    private List<String> whitelist;
-
-    private boolean limitBookMinPrices;
-    private boolean limitBookMaxTrades;
-    private Map<Enchantment, Integer> minEnchantLevels;
-
-    private Player whitelistPlayer;
-    private Player blacklistPlayer;
-
-    private final Random random = new Random();
-    private NamespacedKey lastCheckedBookIndex; //Last recipe index checked for book level changes
+    private volatile Settings settings; //Replaced as a whole on reload, handlers should read it once
+    private EnchantmentCatalog catalog;
+    private final AtomicBoolean reloading = new AtomicBoolean();
+
+    private volatile UuidSet whitelist;
+    private volatile WhitelistStore whitelistStore;
+    private volatile boolean whitelistLoaded;
+    private ConfigurationSection storageSettings; //Always read from the local config.yml, changes need a restart
+    private SqlDatabase database;
+    private ConfigStore configStore;
+
+    //Players currently adding/removing villagers to/from the whitelist by interacting with them
+    private final Set<UUID> whitelistPlayers = ConcurrentHashMap.newKeySet();
+    private final Set<UUID> blacklistPlayers = ConcurrentHashMap.newKeySet();
+
+    private VillagerReconciler reconciler;
+    private final AtomicReference<BulkVillagerOperation> bulkOperation = new AtomicReference<>();
+    private DebugTrace trace;
+    private volatile AuditLog audit;
+    private DemandPricing demandPricing;
+    private final InteractionCoalescer interactions = new InteractionCoalescer(4096);
+    private final ExecutorService tradeExecutor = Executors.newVirtualThreadPerTaskExecutor(); //Computes background trade updates
+    private final PluginMetrics metrics = new PluginMetrics();
+    private final AtomicLong noReplacementWarned = new AtomicLong(Long.MIN_VALUE); //Settings generation last warned about
+    private TradeProcessor processor;
+    private final VillagerTradeState tradeState = new VillagerTradeState(key -> new NamespacedKey(this, key));
 
     @Override
     public void onEnable() {
         getConfig().options().copyDefaults();
         saveDefaultConfig();
+        this.catalog = EnchantmentCatalog.fromRegistry();
+        this.processor = new TradeProcessor(new MetaBookItems(catalog), metrics);
+        this.configStore = this.createConfigStore();
+        this.demandPricing = new DemandPricing(this, catalog);
         this.loadSettings();
         System.out.println("Villager Modifiers are running");
+
+        reconciler = new VillagerReconciler(this);
+        reconciler.start();
+
         getServer().getPluginManager().registerEvents(this, this);
+        getServer().getPluginManager().registerEvents(reconciler, this);
 
-        lastCheckedBookIndex = new NamespacedKey(this, "last-checked-book-index");
+        metrics.registerJfr();
     }
 
-    public void loadSettings() {
-        String mainPath = this.getDataFolder().getPath() + "/";
-
-        File configFile = new File(mainPath, "config.yml");
-        this.whitelistFile = new File(mainPath, "whitelist.yml");
+    @Override
+    public void onDisable() {
+        metrics.unregisterJfr();
+        tradeExecutor.shutdown();
 
-        this.config = YamlConfiguration.loadConfiguration(configFile);
-        this.whitelistConfig = YamlConfiguration.loadConfiguration(this.whitelistFile);
-        this.minEnchantLevels = new HashMap<>();
+        if (this.audit != null) {
+            this.audit.close();
+        }
 
-        ConfigurationSection minVillagerLevels = this.config.getConfigurationSection("enchantments.min-villager-levels");
-        this.limitBookMinPrices = this.config.getBoolean("enchantments.limit-min-prices", false);
-        this.limitBookMaxTrades = this.config.getBoolean("enchantments.limit-max-trades", false);
+        if (this.demandPricing != null) {
+            this.demandPricing.close();
+        }
 
-        if(minVillagerLevels != null) {
-            minVillagerLevels.getKeys(false).forEach((String key) -> {
-                Enchantment enchantment = Registry.ENCHANTMENT.get(NamespacedKey.minecraft(key));
+        if (this.whitelistStore != null) {
+            this.whitelistStore.close();
+        }
 
-                if(enchantment != null) {
-                    this.minEnchantLevels.put(enchantment, minVillagerLevels.getInt(key, 1));
-                } else {
-                    getLogger().warning("Invalid enchantment " + key);
-                }
-            });
+        if (this.configStore != null) {
+            this.configStore.close();
         }
 
-        if (this.whitelistFile.exists()) {
-            this.whitelist = this.whitelistConfig.getStringList("whitelist");
-        } else {
-            this.whitelist = new ArrayList<>();
-            this.whitelist.add("placeholder");
-            this.whitelistConfig.addDefault("whitelist", whitelist);
-            this.whitelistConfig.options().copyDefaults(true);
-            this.saveWhitelist();
+        if (this.database != null) {
+            this.database.close();
         }
     }
 
-    public boolean addToWhitelist(Villager villager) {
-        if (this.whitelist.contains(villager.getUniqueId().toString())) {
-            return false;
-        } else {
-            this.whitelist.add(villager.getUniqueId().toString());
-            this.saveWhitelist();
-
+    static boolean isFolia() {
+        try {
+            Class.forName("io.papermc.paper.threadedregions.RegionizedServer");
             return true;
+        } catch (ClassNotFoundException e) {
+            return false;
         }
     }
 
-    public boolean removeFromWhitelist(Villager villager) {
-        if (!this.whitelist.contains(villager.getUniqueId().toString())) {
-            return false;
-        } else {
-            this.whitelist.remove(villager.getUniqueId().toString());
-            this.saveWhitelist();
-
-            return true;
-        }
+    public FileConfiguration getSettings() {
+        return settings.getConfig();
     }
 
-    public void saveWhitelist() {
-        this.whitelistConfig.set("whitelist", whitelist);
-        try {
-            this.whitelistConfig.save(this.whitelistFile);
-        } catch (IOException e) {
-            getLogger().severe("Failed to save whitelist: " + e);
-        }
+    private File getConfigFile() {
+        return new File(this.getDataFolder(), "config.yml");
     }
 
-    @EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
-	public void onCareerChange(VillagerCareerChangeEvent event) {
-		if(!event.getEntity().getProfession().equals(Villager.Profession.NONE)) {
-			getLogger().info("Resetting persistent data");
-			event.getEntity().getPersistentDataContainer().remove(lastCheckedBookIndex);
-		}
-	}
+    private ConfigStore createConfigStore() {
+        this.storageSettings = YamlConfiguration.loadConfiguration(getConfigFile()).getConfigurationSection("storage");
 
-    @EventHandler
-    public void quit(PlayerQuitEvent event) {
-        if(event.getPlayer().equals(whitelistPlayer)) {
-            whitelistPlayer = null;
+        if (this.storageSettings == null) {
+            this.storageSettings = new YamlConfiguration();
         }
 
-        if(event.getPlayer().equals(blacklistPlayer)) {
-            blacklistPlayer = null;
+        if (this.storageSettings.getBoolean("shared-config", false)) {
+            SqlDatabase database = getDatabase();
+
+            if (database != null) {
+                return new SqlConfigStore(database, getLogger(), this.storageSettings.getLong("poll-interval-ms", 5000),
+                                          this::sharedConfigChanged);
+            }
         }
+
+        return new FileConfigStore();
     }
 
-    @EventHandler
-    public void interact(PlayerInteractEntityEvent event) {
-        Player p = event.getPlayer();
-        if (!(event.getRightClicked() instanceof Villager villager)) return;
+    //Opens the shared database on first use, returns null if it couldn't be opened
+    private SqlDatabase getDatabase() {
+        if (this.database == null) {
+            String url = this.storageSettings.getString("sql-url", "");
 
-        if (p.equals(whitelistPlayer)) {
-            if (addToWhitelist(villager)) {
-                p.sendMessage("Villager has been added to the whitelist");
-            } else {
-                p.sendMessage("Villager is already whitelisted");
+            if (url.isEmpty()) {
+                url = "jdbc:sqlite:" + new File(this.getDataFolder(), "shared.db").getAbsolutePath();
+            }
+
+            try {
+                this.database = SqlDatabase.open(url, getLogger());
+            } catch (SQLException e) {
+                getLogger().severe("Failed to open database " + url + ": " + e);
             }
         }
 
-        if (p.equals(blacklistPlayer)) {
-            if (removeFromWhitelist(villager)) {
-                p.sendMessage("Villager has been removed from the whitelist");
+        return this.database;
+    }
+
+    private String readConfigFile() throws IOException {
+        return Files.readString(getConfigFile().toPath());
+    }
+
+    public void loadSettings() {
+        Settings next;
+
+        try {
+            String yaml = readConfigFile();
+            String shared = null;
+
+            try {
+                shared = this.configStore.read();
+            } catch (IOException e) {
+                getLogger().severe("Failed to read shared config, using config.yml: " + e);
+            }
+
+            //The first server to start shares its config.yml, the rest use the shared copy
+            if (shared != null) {
+                yaml = shared;
             } else {
-                p.sendMessage("Villager was not found in the whitelist");
+                this.configStore.publish(yaml);
+            }
+
+            next = Settings.parse(yaml, catalog, demandPricing, getLogger());
+        } catch (IOException | InvalidConfigurationException e) {
+            getLogger().severe("Failed to load config.yml: " + e);
+
+            if (this.settings != null) {
+                return;
             }
+
+            next = Settings.of(new YamlConfiguration(), catalog, getLogger());
         }
 
-        if (whitelist.contains(villager.getUniqueId().toString())) {
+        applySettings(next);
+    }
+
+    /**
+     * Parses and compiles config.yml asynchronously, then publishes the new settings from the global region thread,
+     * reporting what changed. Loaded villagers are queued for reconciliation if trade processing changed.
+     * If the config is shared, the reloaded config.yml replaces it on every server.
+     */
+    private void reloadSettings(CommandSender sender) {
+        if (!reloading.compareAndSet(false, true)) {
+            sender.sendMessage("A reload is already in progress");
             return;
         }
 
-        checkBookTrades(villager);
+        getServer().getAsyncScheduler().runNow(this, task -> {
+            Settings next;
+            String yaml;
+
+            try {
+                yaml = readConfigFile();
+                next = Settings.parse(yaml, catalog, demandPricing, getLogger());
+            } catch (IOException | InvalidConfigurationException e) {
+                reloading.set(false);
+                getLogger().severe("Failed to reload config.yml: " + e);
+                sender.sendMessage("Failed to reload config.yml, the current settings have been kept: " + e.getMessage());
+                return;
+            }
 
-        int pos = -1;
-        for (MerchantRecipe recipe : villager.getRecipes()) {
-            pos++;
-            ConfigurationSection modifyConfig = getTradeConfig(recipe, TradeType.SELLING);
+            this.configStore.publish(yaml);
 
-            if(modifyConfig == null) {
-                modifyConfig = getTradeConfig(recipe, TradeType.BUYING);
-            }
+            getServer().getGlobalRegionScheduler().execute(this, () -> {
+                reloading.set(false);
+                publishSettings(next, sender, "Plugin has been reloaded");
+            });
+        });
+    }
 
-            if(modifyConfig == null) {
-                continue;
-            }
+    //Applies a config published by another server, called from the database thread
+    private void sharedConfigChanged(String yaml) {
+        Settings next;
 
-            villager.setRecipe(pos, modifyRecipe(recipe, modifyConfig));
+        try {
+            next = Settings.parse(yaml, catalog, demandPricing, getLogger());
+        } catch (InvalidConfigurationException e) {
+            getLogger().severe("Failed to load shared config, the current settings have been kept: " + e);
+            return;
         }
+
+        getServer().getGlobalRegionScheduler().execute(this, () -> publishSettings(
+                next, getServer().getConsoleSender(), "Config has been updated by another server"));
     }
 
-    @EventHandler
-    public void tradeReplenish(VillagerReplenishTradeEvent event) {
-        MerchantRecipe recipe = event.getRecipe();
-        ItemStack result = recipe.getResult();
+    //Applies reloaded settings and reports the trade changes, must be called from the global region thread
+    private void publishSettings(Settings next, CommandSender sender, String message) {
+        Settings previous = this.settings;
 
-        int basePrice = recipe.getIngredients().getFirst().getAmount();
-        int minPrice = 1;
-        int bonus = event.getRecipe().getUses();
+        next.diffAgainst(previous);
+        applySettings(next);
 
-        ConfigurationSection modifyConfig = getTradeConfig(recipe, TradeType.SELLING);
+        List<String> changes = next.getDiff().getChanges();
 
-        if(modifyConfig == null) {
-            modifyConfig = getTradeConfig(recipe, TradeType.BUYING);
+        sender.sendMessage(message + ", " + (changes.isEmpty() ? "no trade changes"
+                : changes.size() + " trade change" + (changes.size() == 1 ? "" : "s")));
+
+        for (int i = 0; i < Math.min(changes.size(), 20); i++) {
+            sender.sendMessage(" " + changes.get(i));
         }
 
-        if(result.getType() == Material.ENCHANTED_BOOK && this.limitBookMinPrices) {
-            int cost = recipe.getIngredients().getFirst().getAmount();
-            minPrice = Math.toIntExact(Math.max(1, Math.round(0.66 * cost)));
+        if (changes.size() > 20) {
+            sender.sendMessage(" and " + (changes.size() - 20) + " more");
         }
 
-        if(modifyConfig == null && minPrice == 1) {
-            return;
+        if (next.getGeneration() != previous.getGeneration()) {
+            this.reconciler.queueLoadedVillagers(next.getDiff());
         }
+    }
 
-        if(modifyConfig != null) {
-            minPrice = Math.max(minPrice, modifyConfig.getInt("item1.minCost", 1));
+    //Publishes new settings, must be called from the global region thread
+    private void applySettings(Settings next) {
+        Settings previous = this.settings;
+        FileConfiguration config = next.getConfig();
+
+        this.settings = next;
+
+        if (this.trace == null) {
+            this.trace = new DebugTrace(config.getInt("debug.buffer-size", 4096));
         }
 
-        if(bonus < 0 && (basePrice + bonus) < minPrice) {
-            event.getRecipe().setUses(-(basePrice - minPrice));
+        this.trace.setEnabled(config.getBoolean("debug.enabled", false));
+
+        if (this.reconciler != null) {
+            this.reconciler.loadSettings();
         }
-    }
 
-    private ConfigurationSection getTradeConfig(MerchantRecipe recipe, TradeType tradeType) {
-        String prefix = tradeType.toString().toLowerCase() + ".";
-        ItemStack target = tradeType == TradeType.SELLING ? recipe.getResult() : recipe.getIngredients().getFirst();
+        if (next.getDemandPricing() != null) {
+            this.demandPricing.loadSettings(config);
+        } else {
+            this.demandPricing.close();
+        }
 
-        if (target.getType().equals(Material.ENCHANTED_BOOK)) {
-            ConfigurationSection result = null;
-            EnchantmentStorageMeta meta = (EnchantmentStorageMeta) target.getItemMeta();
+        if (previous == null || !Settings.leafValues(previous.getConfig().getConfigurationSection("audit"))
+                .equals(Settings.leafValues(config.getConfigurationSection("audit")))) {
+            openAuditLog(config);
+        }
 
-            for (Enchantment enchantment : meta.getStoredEnchants().keySet()) {
-                ConfigurationSection config = this.config.getConfigurationSection(
-                        prefix + enchantment.getKey().getKey() + "_" + meta.getStoredEnchantLevel(enchantment));
+        //The whitelist is only changed through the plugin, so the store is kept unless its settings change
+        if (previous != null && Settings.leafValues(previous.getConfig().getConfigurationSection("whitelist"))
+                .equals(Settings.leafValues(config.getConfigurationSection("whitelist")))) {
+            return;
+        }
 
-                if (config != null) {
-                    result = config;
-                    break;
-                }
-            }
+        String persistence = config.getString("whitelist.persistence", "yaml");
+        WhitelistStore store;
+
+        if (persistence.equalsIgnoreCase("sql") && getDatabase() != null) {
+            store = new SqlWhitelistStore(getDatabase(), this.getDataFolder(), getLogger(),
+                                          this.storageSettings.getLong("write-interval-ms", 1000),
+                                          this.storageSettings.getLong("poll-interval-ms", 5000));
+        } else if (persistence.equalsIgnoreCase("journal")) {
+            store = new JournalWhitelistStore(this.getDataFolder(), getLogger(),
+                                              config.getInt("whitelist.compact-after", 10000),
+                                              config.getLong("whitelist.compact-interval", 300));
+        } else {
+            store = new YamlWhitelistStore(new File(this.getDataFolder(), "whitelist.yml"), getLogger());
+        }
 
-            return result;
+        //Closing and loading stores can block on files or the database, so the swap happens on the async scheduler.
+        //Until the first load completes every villager is treated as whitelisted.
+        LoadingWhitelistStore loading = new LoadingWhitelistStore(this.whitelistStore, store, getLogger());
+
+        if (this.whitelist == null) {
+            this.whitelist = new UuidSet();
         }
 
-        return this.config.getConfigurationSection(prefix + target.getType());
+        this.whitelistStore = loading;
+
+        getServer().getAsyncScheduler().runNow(this, task -> {
+            UuidSet loaded = loading.loadNext();
+
+            getServer().getGlobalRegionScheduler().execute(this, () -> {
+                //Replaced by a later reload, which closes it
+                if (this.whitelistStore != loading) {
+                    return;
+                }
+
+                loading.handOver(loaded);
+                this.whitelist = loaded;
+                this.whitelistStore = store;
+                this.whitelistLoaded = true;
+            });
+        });
     }
 
-    public MerchantRecipe modifyRecipe(MerchantRecipe recipe, ConfigurationSection config) {
-        if(config == null) {
-            return recipe;
+    private void openAuditLog(FileConfiguration config) {
+        if (this.audit != null) {
+            this.audit.close();
+            this.audit = null;
         }
 
-        boolean change = config.getBoolean("change", false);
+        if (!config.getBoolean("audit.enabled", false)) {
+            return;
+        }
 
-        if (change) {
-            ConfigurationSection item1Config = config.getConfigurationSection("item1");
-            ConfigurationSection item2Config = config.getConfigurationSection("item2");
-            ConfigurationSection resultConfig = config.getConfigurationSection("result");
+        try {
+            this.audit = AuditLog.open(new File(this.getDataFolder(), "audit"), getLogger(), catalog,
+                                       config.getLong("audit.segment-size-mb", 16) * 1024 * 1024,
+                                       config.getInt("audit.max-files", 64));
+        } catch (IOException e) {
+            getLogger().severe("Failed to open audit log: " + e);
+        }
+    }
 
-            ItemStack item1 = recipe.getIngredients().getFirst();
-            ItemStack item2 = recipe.getIngredients().get(1);
-            ItemStack result = recipe.getResult();
+    public boolean addToWhitelist(Villager villager) {
+        if (!this.whitelist.add(villager.getUniqueId())) {
+            return false;
+        } else {
+            this.whitelistStore.added(villager.getUniqueId());
 
-            item1 = getTradeIngredient(item1Config, item1);
-            item2 = getTradeIngredient(item2Config, item2);
-            result = getTradeIngredient(resultConfig, result);
+            return true;
+        }
+    }
 
-            MerchantRecipe newRecipe = new MerchantRecipe(result, config.getInt("uses", recipe.getUses()));
+    public boolean removeFromWhitelist(Villager villager) {
+        if (!this.unwhitelist(villager)) {
+            return false;
+        } else {
+            this.whitelistStore.removed(villager.getUniqueId());
 
-            newRecipe.setUses(recipe.getUses());
-            newRecipe.setPriceMultiplier(recipe.getPriceMultiplier());
-            newRecipe.setExperienceReward(recipe.hasExperienceReward());
-            newRecipe.setVillagerExperience(recipe.getVillagerExperience());
-            newRecipe.addIngredient(item1);
-            newRecipe.addIngredient(item2);
+            return true;
+        }
+    }
 
-            return newRecipe;
+    //Removes a villager from the in memory whitelist without persisting it, so its next interaction is processed again
+    boolean unwhitelist(Villager villager) {
+        if (!this.whitelist.remove(villager.getUniqueId())) {
+            return false;
         }
 
-        return recipe;
+        this.interactions.invalidate(villager.getEntityId());
+
+        return true;
     }
 
-    private ItemStack getTradeIngredient(ConfigurationSection config, ItemStack originalItem) {
-        if(config != null) {
-            Material material = Material.getMaterial(config.getString("material", ""));
+    UuidSet getWhitelist() {
+        return this.whitelist;
+    }
 
-            if(material != null) {
-                originalItem = new ItemStack(material, config.getInt("cost", 1));
-            } else {
-                originalItem = originalItem.clone();
-                originalItem.setAmount(config.getInt("cost", originalItem.getAmount()));
-            }
-        }
-        return originalItem;
+    //Persists a batch of changes already made to the whitelist
+    void whitelistChanged(Collection<UUID> added, Collection<UUID> removed) {
+        this.whitelistStore.changed(added, removed);
     }
 
-    private void checkBookTrades(Villager villager) {
-        int villagerLevel = villager.getVillagerLevel();
-        Set<Enchantment> disallowed = new HashSet<>(); //Tracks already present enchantments to prevent multiple offers for the same type
-        int lastCheckedIndex;
+    public boolean isWhitelisted(Villager villager) {
+        return !this.whitelistLoaded || this.whitelist.contains(villager.getUniqueId());
+    }
 
-        if (villager.getPersistentDataContainer().has(lastCheckedBookIndex, PersistentDataType.INTEGER)) {
-            lastCheckedIndex = villager.getPersistentDataContainer().get(lastCheckedBookIndex, PersistentDataType.INTEGER);
-        } else {
-            lastCheckedIndex = -1;
-        }
+    boolean isWhitelistLoaded() {
+        return this.whitelistLoaded;
+    }
 
-        getLogger().info("Last checked book index " + lastCheckedIndex);
+    public void saveWhitelist() {
+        this.whitelistStore.save();
+    }
 
-        int pos = -1;
-        for (MerchantRecipe recipe : villager.getRecipes()) {
-            boolean changed = false; //Whether any enchantments were modified
-            int highestLevel = 0; //Highest level of any enchantment in the result item, used for generating price
-            Enchantment highestEnchantment = null; //Highest level of any enchantment in the result item, used for generating price
-            pos++;
+    @EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
+	public void onCareerChange(VillagerCareerChangeEvent event) {
+		if(!event.getEntity().getProfession().equals(Villager.Profession.NONE)) {
+			if(trace.isEnabled()) {
+				trace.record(DebugTrace.CAREER_RESET, event.getEntity().getUniqueId(), DebugTrace.NONE,
+							 DebugTrace.NONE, 0, DebugTrace.NONE, 0, 0);
+			}
 
-            ItemStack result = recipe.getResult();
+			tradeState.resetCareer(event.getEntity().getPersistentDataContainer(), event.getEntity().getEntityId(),
+								   interactions);
+		}
+	}
 
-            if (!result.getType().equals(Material.ENCHANTED_BOOK)) {
-                continue;
-            }
+    //Eager mode, rewrite each trade as it is generated so interactions only need to verify the fingerprint
+    @EventHandler(ignoreCancelled = true, priority = EventPriority.HIGHEST)
+    public void onAcquireTrade(VillagerAcquireTradeEvent event) {
+        Settings settings = this.settings;
 
-            EnchantmentStorageMeta meta = (EnchantmentStorageMeta) result.getItemMeta();
+        if(!settings.isEagerTrades() || !(event.getEntity() instanceof Villager villager) || isWhitelisted(villager)) {
+            return;
+        }
 
-            if(pos <= lastCheckedIndex) {
-                disallowed.addAll(meta.getStoredEnchants().keySet());
-                getLogger().info("Skipping recipe " + pos + " as already checked before");
-                continue;
-            }
+        List<MerchantRecipe> recipes = new ArrayList<>(villager.getRecipes());
+        MerchantRecipe recipe = event.getRecipe();
+        ItemStack result = recipe.getResult();
 
-            for (Enchantment enchantment : meta.getStoredEnchants().keySet()) {
-                int level = meta.getStoredEnchantLevel(enchantment);
+        if(result.getType().equals(Material.ENCHANTED_BOOK)) {
+            long[] disallowed = settings.getEnchantmentTables().newEnchantmentSet();
+            processor.addOfferedEnchantments(recipes, disallowed);
 
-                //Enchantment type isn't allowed, replace with another
-                if(!isEnchantmentAllowed(enchantment, villagerLevel, disallowed)) {
-                    meta.removeStoredEnchant(enchantment);
+            List<BookChange> changes = new ArrayList<>(1);
+            MerchantRecipe newRecipe = processor.checkBookTrade(settings, villager.getUniqueId(), recipes.size(), recipe,
+                                                                villager.getVillagerLevel(), disallowed, changes);
 
-                    //Get allowed enchantment and level
-                    Enchantment replacement = getEnchantment(villagerLevel, disallowed);
-                    List<Integer> range = getEnchantmentLevelRange(replacement, villagerLevel);
-                    int replacementLevel = range.get(random.nextInt(range.size()));
+            if(newRecipe != null) {
+                recipe = newRecipe;
+            }
 
-                    getLogger().info("Replaced " + enchantment.getKey().getKey() + ":" + level + " with: " + replacement.getKey().getKey() + ":" + replacementLevel);
+            recordBookChanges(villager.getUniqueId(), changes);
+        }
 
-                    disallowed.add(replacement);
-                    meta.addStoredEnchant(replacement, replacementLevel, false);
+        TradeRuleTable tradeRules = settings.getTradeRules();
+        TradeRule rule = tradeRules.find(recipe);
 
-                    changed = true;
+        if(rule != null) {
+            MerchantRecipe modified = rule.apply(recipe);
 
-                    if(replacementLevel > highestLevel) {
-                        highestEnchantment = replacement;
-                        highestLevel = replacementLevel;
-                    }
-                } else {
-                    List<Integer> allowedLevels = getEnchantmentLevelRange(enchantment, villagerLevel);
+            if(modified != recipe) {
+                recipe = modified;
+                rule = tradeRules.find(recipe);
+            }
+        }
 
-                    //Enchantment level isn't allowed, change level
-                    if(!allowedLevels.contains(level)) {
-                        int replacementLevel = allowedLevels.get(random.nextInt(allowedLevels.size()));
+        if(recipe != event.getRecipe()) {
+            event.setRecipe(recipe);
+            metrics.recipesRewritten.increment();
+        }
 
-                        getLogger().info("Replaced " + enchantment + ":" + level + " with level: " + replacementLevel);
-                        meta.removeStoredEnchant(enchantment);
-                        meta.addStoredEnchant(enchantment, replacementLevel, false);
+        //The new recipe is appended, so if all previous recipes were already processed the villager stays up to date
+        tradeState.append(settings, villager.getPersistentDataContainer(), recipes, recipe, rule, processor.getBookCell(recipe));
+    }
 
-                        changed = true;
+    @EventHandler
+    public void quit(PlayerQuitEvent event) {
+        whitelistPlayers.remove(event.getPlayer().getUniqueId());
+        blacklistPlayers.remove(event.getPlayer().getUniqueId());
+    }
 
-                        if(replacementLevel > highestLevel) {
-                            highestEnchantment = enchantment;
-                            highestLevel = replacementLevel;
-                        }
-                    } else if(level > highestLevel) {
-                        highestEnchantment = enchantment;
-                        highestLevel = level;
-                    }
+    @EventHandler
+    public void interact(PlayerInteractEntityEvent event) {
+        if (!(event.getRightClicked() instanceof Villager villager)) return;
 
-                    disallowed.add(enchantment);
-                }
+        long start = System.nanoTime();
+        interact(event.getPlayer(), villager);
+        metrics.record(PluginMetrics.Handler.INTERACT, start);
+    }
+
+    private void interact(Player p, Villager villager) {
+        if (whitelistPlayers.contains(p.getUniqueId())) {
+            if (addToWhitelist(villager)) {
+                p.sendMessage("Villager has been added to the whitelist");
+            } else {
+                p.sendMessage("Villager is already whitelisted");
             }
+        }
 
-            if((this.limitBookMaxTrades || this.limitBookMinPrices) && meta.hasStoredEnchants()) {
-                changed = true;
+        if (blacklistPlayers.contains(p.getUniqueId())) {
+            if (removeFromWhitelist(villager)) {
+                p.sendMessage("Villager has been removed from the whitelist");
+            } else {
+                p.sendMessage("Villager was not found in the whitelist");
             }
+        }
 
-            if(changed) {
-                result.setItemMeta(meta);
+        //Clicks shortly after the villager was last processed would find it unchanged
+        if (!interactions.tryAcquire(villager.getEntityId(), settings.getCoalesceWindowMillis())) {
+            metrics.interactionsCoalesced.increment();
+            return;
+        }
 
-                int maxUses = recipe.getMaxUses();
+        if (isWhitelisted(villager)) {
+            metrics.whitelistHits.increment();
+            return;
+        }
 
-                if(this.limitBookMaxTrades && meta.hasStoredEnchants()) {
-                    Enchantment enchantment = (Enchantment) meta.getStoredEnchants().keySet().toArray()[0];
-                    int level = meta.getStoredEnchantLevel(enchantment);
-                    maxUses = getEnchantmentMaxTrades(enchantment, level);
-                }
+        processTrades(villager);
+    }
 
-                MerchantRecipe newRecipe = new MerchantRecipe(result, maxUses); //Copy recipe so we can change the result item
-                List<ItemStack> ingredients = recipe.getIngredients();
-                ItemStack firstItem = ingredients.getFirst().clone();
-                ItemStack secondItem = ingredients.get(1);
+    /**
+     * Applies book rules and configured trade rules to all of a villager's trades, unless they are unchanged
+     * since they were last processed. Whitelisted villagers should be excluded by the caller.
+     */
+    public void processTrades(Villager villager) {
+        TradeSnapshot snapshot = snapshotTrades(villager, false);
 
-                //Generate new price to reflect level/type changes
-                if(firstItem.getType() == Material.EMERALD) {
-                    int price = getEnchantmentPrice(highestEnchantment, highestLevel);
-                    getLogger().info("Changing price to: " + price);
-                    firstItem.setAmount(price);
-                }
+        if (snapshot != null) {
+            applyTrades(villager, processor.compute(snapshot));
+        }
+    }
 
-                newRecipe.setUses(recipe.getUses());
-                newRecipe.setPriceMultiplier(recipe.getPriceMultiplier());
-                newRecipe.setExperienceReward(recipe.hasExperienceReward());
-                newRecipe.setVillagerExperience(recipe.getVillagerExperience());
-                newRecipe.addIngredient(firstItem);
+    /**
+     * Processes a villager's trades like {@link #processTrades(Villager)}, but with the rewrites computed on another
+     * thread and applied on the villager's thread afterwards, so only the snapshot and apply steps cost its tick.
+     * Must be called on the villager's thread. Runs inline if reconcile.async is disabled.
+     */
+    void processTradesAsync(Villager villager) {
+        processTradesAsync(villager, nanos -> {});
+    }
 
-                if(secondItem != null) {
-                    newRecipe.addIngredient(secondItem);
-                }
+    /**
+     * Processes a villager's trades like {@link #processTradesAsync(Villager)}, passing the total time spent on the
+     * villager's thread, snapshotting and applying, to villagerNanos once done.
+     * Nothing is passed if the villager is removed before the update is applied.
+     */
+    void processTradesAsync(Villager villager, LongConsumer villagerNanos) {
+        long start = System.nanoTime();
+
+        if (!settings.isAsyncTrades()) {
+            processTrades(villager);
+            villagerNanos.accept(System.nanoTime() - start);
+            return;
+        }
+
+        TradeSnapshot snapshot = snapshotTrades(villager, true);
+        long snapshotNanos = System.nanoTime() - start;
+
+        if (snapshot == null) {
+            villagerNanos.accept(snapshotNanos);
+            return;
+        }
 
-                villager.setRecipe(pos, newRecipe);
+        CompletableFuture.supplyAsync(() -> processor.compute(snapshot), tradeExecutor).whenComplete((update, e) -> {
+            if (e != null) {
+                getLogger().severe("Failed to process trades of villager " + snapshot.villagerId + ": " + e);
+            } else if (isEnabled()) {
+                //Returns null if the villager has been removed, it will be processed again when next loaded
+                villager.getScheduler().run(this, task -> {
+                    long applyStart = System.nanoTime();
+                    applyTradesIfCurrent(villager, update);
+                    villagerNanos.accept(snapshotNanos + System.nanoTime() - applyStart);
+                }, null);
             }
+        });
+    }
+
+    /**
+     * Captures a villager's trades for processing, or handles them directly and returns null if they are unchanged
+     * since they were last processed.
+     * @param detached whether to copy the recipes, so the snapshot can be processed off the villager's thread
+     */
+    private TradeSnapshot snapshotTrades(Villager villager, boolean detached) {
+        return tradeState.snapshot(this.settings, villager.getPersistentDataContainer(), villager.getUniqueId(),
+                                   villager.getVillagerLevel(), villager.getRecipes(), detached);
+    }
+
+    //Applies an update computed off the villager's thread, or processes the villager again if it changed meanwhile
+    private void applyTradesIfCurrent(Villager villager, TradeUpdate update) {
+        if (!villager.isValid() || isWhitelisted(villager)) {
+            return;
         }
 
-        villager.getPersistentDataContainer().set(lastCheckedBookIndex, PersistentDataType.INTEGER, pos);
+        if (isCurrent(villager, update)) {
+            applyTrades(villager, update);
+        } else {
+            metrics.staleUpdates.increment();
+            processTrades(villager);
+        }
     }
 
-    private boolean isEnchantmentAllowed(Enchantment enchantment, int villagerLevel, Set<Enchantment> disallowed) {
-        if(disallowed.contains(enchantment)) {
+    //Whether the villager's trades and settings are still those the update was computed from
+    private boolean isCurrent(Villager villager, TradeUpdate update) {
+        TradeSnapshot snapshot = update.snapshot;
+
+        if (snapshot.settings != this.settings || villager.getRecipeCount() != snapshot.originals.size()
+                || tradeState.getLastCheckedIndex(villager.getPersistentDataContainer()) != snapshot.lastCheckedIndex) {
             return false;
         }
 
-        return villagerLevel >= minEnchantLevels.getOrDefault(enchantment, 1);
+        for (int i = 0; i < snapshot.originals.size(); i++) {
+            MerchantRecipe recipe = villager.getRecipe(i);
+
+            //Rewritten recipes copy the uses from the snapshot, so trades made since would be undone
+            if (recipe != snapshot.originals.get(i)
+                    || (update.isChanged(i) && recipe.getUses() != snapshot.recipes.get(i).getUses())) {
+                return false;
+            }
+        }
+
+        return true;
     }
 
-    private Enchantment getEnchantment(int villagerLevel, Set<Enchantment> disallowed) {
-        List<Enchantment> allowedEnchantments = Registry.ENCHANTMENT.stream()
-                .filter((Enchantment enchantment) ->
-                                !enchantment.equals(Enchantment.SOUL_SPEED) &&
-                                        !enchantment.equals(Enchantment.SWIFT_SNEAK) &&
-                                        !disallowed.contains(enchantment) &&
-                                        minEnchantLevels.getOrDefault(enchantment, 1) <= villagerLevel)
-                .toList();
+    //Must be called on the villager's thread
+    private void applyTrades(Villager villager, TradeUpdate update) {
+        metrics.recipesRewritten.add(tradeState.apply(villager.getPersistentDataContainer(), update,
+                                                      (recipe, pos) -> villager.setRecipe(pos, recipe)));
+        recordBookChanges(update.snapshot.villagerId, update.bookChanges);
+    }
 
-        return allowedEnchantments.get(random.nextInt(allowedEnchantments.size()));
+    /**
+     * Processes a villager's trades even if they are unchanged since they were last processed.
+     * Books already checked are not rerolled.
+     */
+    void reapplyTrades(Villager villager) {
+        tradeState.invalidate(villager.getPersistentDataContainer());
+        processTradesAsync(villager);
     }
 
-    private List <Integer> getEnchantmentLevelRange(Enchantment enchantment, int villagerLevel) {
-        List <Integer> range = new ArrayList <>();
-        int minVillagerLevel = config.getInt("enchantments.min-villager-levels." + enchantment.getKey().getKey(), 1);
+    @EventHandler
+    public void tradeReplenish(VillagerReplenishTradeEvent event) {
+        long start = System.nanoTime();
+        Settings settings = this.settings;
+        MerchantRecipe recipe = event.getRecipe();
+        int tag = event.getEntity() instanceof Villager villager
+                ? getTradeTag(villager, recipe, settings.getGeneration()) : TradeTags.UNKNOWN;
+        int previousUses = recipe.getUses();
+
+        if(processor.replenish(settings, recipe, tag)) {
+            metrics.replenishClamps.increment();
 
-        if(villagerLevel < minVillagerLevel) {
-            return range;
-        }
+            AuditLog audit = this.audit;
 
-        if(enchantment.getMaxLevel() == 1) {
-            range.add(1);
-            return range;
+            if(audit != null && event.getEntity() instanceof Villager villager) {
+                auditReplenishClamp(audit, villager, recipe, previousUses);
+            }
         }
 
-        //(number of villager levels above the min required) / (total number of villager levels allowing the enchantment)
-        //Multiplied by max enchant level and rounded to get base level
-        int baseLevel = Math.max(1, Math.round(enchantment.getMaxLevel() *
-                                           ((villagerLevel - minVillagerLevel) / (float) (4 - minVillagerLevel))));
+        metrics.record(PluginMetrics.Handler.TRADE_REPLENISH, start);
+    }
 
-        range.add(baseLevel);
+    //Finds the tag stored for a recipe when the villager's trades were last processed
+    private int getTradeTag(Villager villager, MerchantRecipe recipe, int configGeneration) {
+        return tradeState.getTradeTag(villager.getPersistentDataContainer(), configGeneration, recipe,
+                                      villager.getRecipeCount(), villager::getRecipe);
+    }
 
-        //If the enchantment has less levels than required to fill all allowed villager levels
-        //and current villager level is the min required for this enchantment
-        //limit range to lowest level
-        if(enchantment.getMaxLevel() <= (4 - minVillagerLevel) && villagerLevel == minVillagerLevel) {
-            return range;
+    //Counts completed book trades for demand pricing, using the book from the trade's tag if it has one
+    @EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
+    public void onTrade(PlayerTradeEvent event) {
+        Settings settings = this.settings;
+        DemandPricing demand = settings.getDemandPricing();
+        MerchantRecipe recipe = event.getTrade();
+
+        if(demand == null || recipe.getResult().getType() != Material.ENCHANTED_BOOK) {
+            return;
         }
 
-        //Otherwise add levels above and below to range, if possible
-        if(baseLevel > 1) {
-            range.add(baseLevel - 1);
+        int tag = event.getVillager() instanceof Villager villager
+                ? getTradeTag(villager, recipe, settings.getGeneration()) : TradeTags.UNKNOWN;
+
+        demand.recordTrade(tag != TradeTags.UNKNOWN ? TradeTags.getBook(tag) : processor.getBookCell(recipe));
+    }
+
+    private static int getRecipeIndex(Villager villager, MerchantRecipe recipe) {
+        for (int i = 0; i < villager.getRecipeCount(); i++) {
+            if(villager.getRecipe(i) == recipe) {
+                return i;
+            }
         }
 
-        if(baseLevel < enchantment.getMaxLevel()) {
-            range.add(baseLevel + 1);
+        return -1;
+    }
+
+    //Clamps are rare, so the recipe index and book enchantment are looked up again rather than kept from the tag lookup
+    private void auditReplenishClamp(AuditLog audit, Villager villager, MerchantRecipe recipe, int previousUses) {
+        int basePrice = recipe.getIngredients().getFirst().getAmount();
+        int enchantment = AuditLog.NONE;
+        int level = 0;
+
+        if(recipe.getResult().getType() == Material.ENCHANTED_BOOK
+                && recipe.getResult().getItemMeta() instanceof EnchantmentStorageMeta meta) {
+            for (Map.Entry<Enchantment, Integer> entry : meta.getStoredEnchants().entrySet()) {
+                if(entry.getValue() > level) {
+                    enchantment = catalog.id(entry.getKey());
+                    level = entry.getValue();
+                }
+            }
         }
 
-        return range;
+        audit.record(AuditLog.REPLENISH_CLAMPED, villager.getUniqueId(), getRecipeIndex(villager, recipe),
+                     enchantment, level, enchantment, level, basePrice + previousUses, basePrice + recipe.getUses(),
+                     recipe.getMaxUses(), recipe.getMaxUses());
     }
 
-    public int getEnchantmentPrice(Enchantment enchantment, int level) {
-        int price = switch (level) {
-            default -> random.nextInt(15) + 5; //5-19
-            case 2 -> random.nextInt(25) + 8; //8-32
-            case 3 -> random.nextInt(35) + 11; //11-45
-            case 4 -> random.nextInt(45) + 14; //14-58
-            case 5 -> random.nextInt(55) + 17; //17-71
-        };
+    //Writes the metrics, trace and audit records for book changes which have been applied to a villager
+    private void recordBookChanges(UUID villagerId, List<BookChange> changes) {
+        AuditLog audit = this.audit;
+
+        for (BookChange change : changes) {
+            BookPlan plan = change.plan;
+
+            for (int i = 0; i < plan.size; i++) {
+                if(plan.actions[i] == BookPlan.REPLACED) {
+                    metrics.enchantmentsReplaced.increment();
+                } else if(plan.actions[i] == BookPlan.NO_REPLACEMENT) {
+                    warnNoReplacement(plan.ids[i]);
+                }
+            }
+
+            if(trace.isEnabled()) {
+                traceBookChange(trace, villagerId, change);
+            }
 
-        if(enchantment.isTreasure() || enchantment.getMaxLevel() == level) {
-            price = random.nextInt(24) + 40; //40-64
+            if(audit != null && change.rewritten) {
+                auditBookTrade(audit, villagerId, change.recipeIndex, plan, change.oldPrice, change.price,
+                               change.oldMaxUses, change.maxUses);
+            }
         }
+    }
 
-        return price;
+    //Warns once per settings generation, as every villager offering the enchantment would hit the same gap
+    private void warnNoReplacement(int enchantmentId) {
+        long generation = this.settings.getGeneration();
+        long warned = noReplacementWarned.get();
+
+        if(warned != generation && noReplacementWarned.compareAndSet(warned, generation)) {
+            getLogger().warning("No allowed enchantment to replace " + catalog.key(enchantmentId)
+                                        + " with, the original has been kept");
+        }
     }
 
-    public int getEnchantmentMaxTrades(Enchantment enchantment, int level) {
-        if(enchantment.isTreasure()) {
-            return 2;
+    private static void traceBookChange(DebugTrace trace, UUID villagerId, BookChange change) {
+        BookPlan plan = change.plan;
+        int recipeIndex = change.recipeIndex;
+
+        for (int i = 0; i < plan.size; i++) {
+            switch (plan.actions[i]) {
+                case BookPlan.REPLACED -> trace.record(DebugTrace.ENCHANTMENT_REPLACED, villagerId, recipeIndex,
+                                                       plan.ids[i], plan.levels[i], plan.newIds[i], plan.newLevels[i], 0);
+                case BookPlan.LEVEL_CHANGED -> trace.record(DebugTrace.LEVEL_CHANGED, villagerId, recipeIndex,
+                                                            plan.ids[i], plan.levels[i], plan.ids[i], plan.newLevels[i], 0);
+                case BookPlan.NO_REPLACEMENT -> trace.record(DebugTrace.NO_REPLACEMENT, villagerId, recipeIndex,
+                                                             plan.ids[i], plan.levels[i], DebugTrace.NONE, 0, 0);
+                default -> {
+                }
+            }
         }
 
-        if(enchantment.getMaxLevel() == 1 || level == 1) {
-            return 4;
+        if(change.rewritten && change.price != change.oldPrice) {
+            trace.record(DebugTrace.PRICE_CHANGED, villagerId, recipeIndex, DebugTrace.NONE, 0,
+                         plan.highestId, plan.highestLevel, change.price);
         }
+    }
+
+    //Records each changed enchantment with the price and max uses of the whole recipe before and after
+    private static void auditBookTrade(AuditLog audit, UUID villagerId, int recipeIndex, BookPlan plan,
+                                       int oldPrice, int newPrice, int oldMaxUses, int newMaxUses) {
+        boolean enchantmentsChanged = false;
 
-        if(level == enchantment.getMaxLevel()) {
-            return 2;
+        for (int i = 0; i < plan.size; i++) {
+            byte type = switch (plan.actions[i]) {
+                case BookPlan.REPLACED -> AuditLog.ENCHANTMENT_REPLACED;
+                case BookPlan.LEVEL_CHANGED -> AuditLog.LEVEL_CHANGED;
+                default -> 0;
+            };
+
+            if(type == 0) {
+                continue;
+            }
+
+            audit.record(type, villagerId, recipeIndex, plan.ids[i], plan.levels[i],
+                         type == AuditLog.ENCHANTMENT_REPLACED ? plan.newIds[i] : plan.ids[i], plan.newLevels[i],
+                         oldPrice, newPrice, oldMaxUses, newMaxUses);
+            enchantmentsChanged = true;
         }
 
-        if(level == enchantment.getMaxLevel() - 1) {
-            return 3;
+        if(!enchantmentsChanged) {
+            audit.record(AuditLog.PRICE_CHANGED, villagerId, recipeIndex, plan.highestId, plan.highestLevel,
+                         plan.highestId, plan.highestLevel, oldPrice, newPrice, oldMaxUses, newMaxUses);
         }
+    }
 
-        return 3;
+    public int getEnchantmentPrice(Enchantment enchantment, int level) {
+        Settings settings = this.settings;
+        int id = catalog.id(enchantment);
+        int price = settings.getEnchantmentTables().getPrice(id, level, ThreadLocalRandom.current());
+
+        return settings.getDemandPricing() != null
+                ? settings.getDemandPricing().adjustPrice(EnchantmentTables.cell(id, level), price) : price;
+    }
+
+    public int getEnchantmentMaxTrades(Enchantment enchantment, int level) {
+        return settings.getEnchantmentTables().getMaxTrades(catalog.id(enchantment), level);
     }
 
     @Override
@@ -522,26 +841,103 @@ public final class VillagerModifications extends JavaPlugin implements Listener
         if (command.getName().equals("vmreload")) {
             if (sender instanceof Player p) {
                 if (p.hasPermission("VillagerModification.reload")) {
-                    p.sendMessage("Plugin has been reloaded");
-                    this.loadSettings();
+                    this.reloadSettings(p);
                 } else {
                     p.sendMessage("No permission");
                 }
             } else {
-                System.out.println("Plugin has been reloaded");
-                this.loadSettings();
+                this.reloadSettings(sender);
             }
             return true;
         }
 
+        if (command.getName().equals("vmdebug")) {
+            if (!sender.hasPermission("VillagerModification.debug")) {
+                sender.sendMessage("No permission");
+                return true;
+            }
+
+            String action = args.length > 0 ? args[0].toLowerCase() : "";
+
+            switch (action) {
+                case "on" -> {
+                    trace.setEnabled(true);
+                    sender.sendMessage("Trade debug tracing enabled");
+                }
+                case "off" -> {
+                    trace.setEnabled(false);
+                    sender.sendMessage("Trade debug tracing disabled");
+                }
+                case "clear" -> {
+                    trace.clear();
+                    sender.sendMessage("Trade debug trace cleared");
+                }
+                case "dump" -> {
+                    int limit = 50;
+
+                    try {
+                        limit = args.length > 1 ? Integer.parseInt(args[1]) : limit;
+                    } catch (NumberFormatException e) {
+                        sender.sendMessage("Invalid number of events " + args[1]);
+                        return true;
+                    }
+
+                    trace.dump(sender, catalog, limit);
+                }
+                case "audit" -> {
+                    AuditLog audit = this.audit;
+
+                    if (audit == null) {
+                        sender.sendMessage("Audit log is disabled");
+                    } else {
+                        sender.sendMessage("Audit log: " + audit.getRecorded() + " events recorded, "
+                                                   + audit.getDropped() + " dropped");
+                    }
+                }
+                default -> {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        if (command.getName().equals("vmstats")) {
+            if (!sender.hasPermission("VillagerModification.debug")) {
+                sender.sendMessage("No permission");
+            } else if (args.length > 0 && args[0].equalsIgnoreCase("reset")) {
+                metrics.reset();
+                sender.sendMessage("Statistics have been reset");
+            } else {
+                metrics.sendStats(sender);
+            }
+
+            return true;
+        }
+
+        if (command.getName().equals("vmreconcile")) {
+            if (sender.hasPermission("VillagerModification.reload")) {
+                reconciler.sendStatus(sender);
+            } else {
+                sender.sendMessage("No permission");
+            }
+
+            return true;
+        }
+
+        if (command.getName().equals("vmbulk")) {
+            bulkCommand(sender, args);
+            return true;
+        }
+
         if (command.getName().equals("vmwhitelist")) {
             if (sender instanceof Player p) {
 
                 if (p.hasPermission("VillagerModification.whitelist")) {
-                    if (blacklistPlayer == null) {
+                    if (!blacklistPlayers.contains(p.getUniqueId())) {
                         p.sendMessage("Villager whitelist mode activated");
                         p.sendMessage("Enter /vmoff to deactivate");
-                        whitelistPlayer = p;
+                        whitelistPlayers.add(p.getUniqueId());
                     } else {
                         p.sendMessage("Whitelist mode has not been activated.");
                         p.sendMessage("Please enter /vmoff before activating this.");
@@ -560,13 +956,11 @@ public final class VillagerModifications extends JavaPlugin implements Listener
             if (sender instanceof Player p) {
 
                 if (p.hasPermission("VillagerModification.whitelist")) {
-                    if (whitelistPlayer != null) {
+                    if (whitelistPlayers.remove(p.getUniqueId())) {
                         p.sendMessage("Villager whitelist mode deactivated");
-                        whitelistPlayer = null;
                     }
-                    if (blacklistPlayer != null) {
+                    if (blacklistPlayers.remove(p.getUniqueId())) {
                         p.sendMessage("Villager whitelist removing mode deactivated");
-                        blacklistPlayer = null;
                     }
                 } else {
                     p.sendMessage("No permission");
@@ -582,10 +976,10 @@ public final class VillagerModifications extends JavaPlugin implements Listener
             if (sender instanceof Player p) {
 
                 if (p.hasPermission("VillagerModification.whitelist")) {
-                    if (whitelistPlayer == null) {
+                    if (!whitelistPlayers.contains(p.getUniqueId())) {
                         p.sendMessage("Villager whitelist removing mode activated");
                         p.sendMessage("Enter /vmoff to deactivate");
-                        blacklistPlayer = p;
+                        blacklistPlayers.add(p.getUniqueId());
                     } else {
                         p.sendMessage("Removal mode has not been activated.");
                         p.sendMessage("Please enter /vmoff before activating this.");
@@ -603,8 +997,100 @@ public final class VillagerModifications extends JavaPlugin implements Listener
         return false;
     }
 
-    private enum TradeType {
-        BUYING,
-        SELLING
+    private void bulkCommand(CommandSender sender, String[] args) {
+        if (args.length > 0 && args[0].equalsIgnoreCase("cancel")) {
+            BulkVillagerOperation operation = bulkOperation.get();
+
+            if (operation == null) {
+                sender.sendMessage("No bulk operation is running");
+            } else {
+                operation.cancel();
+                sender.sendMessage("Cancelling bulk operation");
+            }
+
+            return;
+        }
+
+        BulkVillagerOperation.Action action = args.length > 1 ? BulkVillagerOperation.Action.fromName(args[0]) : null;
+
+        if (action == null) {
+            sender.sendMessage("Usage: /vmbulk <whitelist|unwhitelist|reapply> <radius <blocks>|chunks <radius>|world [name]>");
+            sender.sendMessage("Or /vmbulk cancel to stop a running operation");
+            return;
+        }
+
+        if (!sender.hasPermission(action == BulkVillagerOperation.Action.REAPPLY
+                                          ? "VillagerModification.reload" : "VillagerModification.whitelist")) {
+            sender.sendMessage("No permission");
+            return;
+        }
+
+        World world;
+        Predicate<Location> area;
+        String areaDescription;
+
+        switch (args[1].toLowerCase()) {
+            case "radius", "chunks" -> {
+                if (!(sender instanceof Player p)) {
+                    sender.sendMessage("Radius and chunk areas can only be used by players");
+                    return;
+                }
+
+                int radius;
+
+                try {
+                    radius = Integer.parseInt(args.length > 2 ? args[2] : "");
+                } catch (NumberFormatException e) {
+                    sender.sendMessage("Invalid radius");
+                    return;
+                }
+
+                Location center = p.getLocation();
+                world = center.getWorld();
+
+                if (args[1].equalsIgnoreCase("radius")) {
+                    double radiusSquared = (double) radius * radius;
+                    area = location -> location.distanceSquared(center) <= radiusSquared;
+                    areaDescription = "a " + radius + " block radius";
+                } else {
+                    int chunkX = center.getBlockX() >> 4;
+                    int chunkZ = center.getBlockZ() >> 4;
+                    area = location -> Math.abs((location.getBlockX() >> 4) - chunkX) <= radius
+                            && Math.abs((location.getBlockZ() >> 4) - chunkZ) <= radius;
+                    areaDescription = "a " + radius + " chunk radius";
+                }
+            }
+            case "world" -> {
+                if (args.length > 2) {
+                    world = getServer().getWorld(args[2]);
+                } else {
+                    world = sender instanceof Player p ? p.getWorld() : null;
+                }
+
+                if (world == null) {
+                    sender.sendMessage(args.length > 2 ? "Unknown world " + args[2] : "Specify a world name");
+                    return;
+                }
+
+                area = location -> true;
+                areaDescription = "world " + world.getName();
+            }
+            default -> {
+                sender.sendMessage("Unknown area " + args[1] + ", expected radius, chunks or world");
+                return;
+            }
+        }
+
+        BulkVillagerOperation operation = new BulkVillagerOperation(this, sender, action, world, area, areaDescription,
+                                                                    reconciler.getLoadedVillagers(),
+                                                                    getSettings().getInt("bulk.batch-size", 100),
+                                                                    () -> bulkOperation.set(null));
+
+        if (!bulkOperation.compareAndSet(null, operation)) {
+            sender.sendMessage("A bulk operation is already running, use /vmbulk cancel to stop it");
+            return;
+        }
+
+        operation.start();
     }
 }
@@ -0,0 +1,31 @@
+package xy.plugins.villagermodifications;
+
+import java.util.SplittableRandom;
+import java.util.UUID;
+
+/**
+ * Reproducible random generators for the deterministic random mode. Each book trade gets its own generator,
+ * seeded from the villager UUID, the recipe index and a server wide salt, so rerolling a trade gives the same result
+ * on any thread, and the roll can be replayed offline.
+ */
+final class VillagerRandom {
+    private VillagerRandom() {
+    }
+
+    static long seed(long salt, UUID villagerId, int recipeIndex) {
+        long seed = mix(salt ^ villagerId.getMostSignificantBits());
+        seed = mix(seed ^ villagerId.getLeastSignificantBits());
+        return mix(seed ^ recipeIndex);
+    }
+
+    static SplittableRandom forRecipe(long salt, UUID villagerId, int recipeIndex) {
+        return new SplittableRandom(seed(salt, villagerId, recipeIndex));
+    }
+
+    //Stafford variant 13 finalizer, as used by SplittableRandom
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
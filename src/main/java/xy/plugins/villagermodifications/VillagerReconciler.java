@@ -0,0 +1,196 @@
+package xy.plugins.villagermodifications;
+
+import com.destroystokyo.paper.event.entity.EntityAddToWorldEvent;
+import com.destroystokyo.paper.event.entity.EntityRemoveFromWorldEvent;
+import org.bukkit.World;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Villager;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Brings villagers nobody has interacted with up to date in the background, after they are loaded or the config
+ * is reloaded. A global tick task dispatches queued villagers to their own entity schedulers, where their trades are
+ * snapshotted, with the rewrites computed off thread and applied back on the villager's thread.
+ * The number dispatched per tick is limited so the average cost on the villager's thread fits the budget.
+ */
+final class VillagerReconciler implements Listener {
+    private static final long INITIAL_AVERAGE_NANOS = 100_000;
+
+    private final VillagerModifications plugin;
+
+    private final Map<UUID, Villager> loadedVillagers = new ConcurrentHashMap<>();
+    private final Queue<Villager> queue = new ConcurrentLinkedQueue<>();
+    private final Set<UUID> queued = ConcurrentHashMap.newKeySet();
+    private final Map<UUID, SettingsDiff> reloadQueued = new ConcurrentHashMap<>(); //Villagers only queued by a reload
+
+    private volatile boolean enabled;
+    private volatile long budgetNanos;
+
+    private final LongAdder processedTotal = new LongAdder();
+    private final AtomicLong averageNanos = new AtomicLong(INITIAL_AVERAGE_NANOS); //Moving average cost of processing one villager
+    private volatile int lastTickDispatched;
+    private volatile boolean reportCleared; //Whether to log when the queue next empties, set for reload batches
+
+    VillagerReconciler(VillagerModifications plugin) {
+        this.plugin = plugin;
+    }
+
+    void start() {
+        loadSettings();
+
+        //Entity add events cover everything on Folia, as plugins are enabled before worlds load.
+        //On Paper the plugin may be enabled later, so pick up villagers which are already loaded.
+        if (!VillagerModifications.isFolia()) {
+            for (World world : plugin.getServer().getWorlds()) {
+                for (Villager villager : world.getEntitiesByClass(Villager.class)) {
+                    loadedVillagers.put(villager.getUniqueId(), villager);
+                }
+            }
+        }
+
+        plugin.getServer().getGlobalRegionScheduler().runAtFixedRate(plugin, task -> dispatch(), 1, 1);
+    }
+
+    void loadSettings() {
+        this.enabled = plugin.getSettings().getBoolean("reconcile.enabled", true);
+        this.budgetNanos = (long) (plugin.getSettings().getDouble("reconcile.budget-ms", 2.0) * 1_000_000);
+    }
+
+    /**
+     * Queues every loaded villager after a reload changed trade processing. Villagers whose trades aren't affected
+     * by the changes are skipped once dispatched, their fingerprints are moved to the new generation when next used.
+     */
+    void queueLoadedVillagers(SettingsDiff diff) {
+        loadSettings();
+
+        if (!enabled) {
+            return;
+        }
+
+        int count = 0;
+
+        for (Villager villager : loadedVillagers.values()) {
+            UUID id = villager.getUniqueId();
+
+            //Villagers already queued, on load or by an earlier reload, are processed in full
+            if (queue(villager)) {
+                reloadQueued.put(id, diff);
+                count++;
+            } else {
+                reloadQueued.remove(id);
+            }
+        }
+
+        if (count > 0) {
+            reportCleared = true;
+            plugin.getLogger().info("Queued " + count + " loaded villagers for trade reconciliation");
+        }
+    }
+
+    boolean queue(Villager villager) {
+        if (enabled && queued.add(villager.getUniqueId())) {
+            queue.add(villager);
+            return true;
+        }
+
+        return false;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onEntityAdd(EntityAddToWorldEvent event) {
+        if (event.getEntity() instanceof Villager villager) {
+            loadedVillagers.put(villager.getUniqueId(), villager);
+            reloadQueued.remove(villager.getUniqueId());
+            queue(villager);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onEntityRemove(EntityRemoveFromWorldEvent event) {
+        if (event.getEntity() instanceof Villager villager) {
+            loadedVillagers.remove(villager.getUniqueId());
+        }
+    }
+
+    private void dispatch() {
+        //Every villager counts as whitelisted until the whitelist has loaded, so wait rather than skip them
+        if (!plugin.isWhitelistLoaded()) {
+            return;
+        }
+
+        int limit = (int) Math.max(1, budgetNanos / Math.max(1, averageNanos.get()));
+        int dispatched = 0;
+        Villager villager;
+
+        while (dispatched < limit && (villager = queue.poll()) != null) {
+            Villager target = villager;
+            queued.remove(target.getUniqueId());
+
+            //Returns null if the villager has been removed, it will be queued again if it is loaded again
+            if (target.getScheduler().run(plugin, task -> process(target), null) != null) {
+                dispatched++;
+            } else {
+                reloadQueued.remove(target.getUniqueId());
+            }
+        }
+
+        lastTickDispatched = dispatched;
+
+        if (queue.isEmpty() && reportCleared) {
+            reportCleared = false;
+            plugin.getLogger().info("Trade reconciliation backlog cleared");
+        }
+    }
+
+    private void process(Villager villager) {
+        SettingsDiff diff = reloadQueued.remove(villager.getUniqueId());
+
+        if (!villager.isValid() || plugin.isWhitelisted(villager)) {
+            return;
+        }
+
+        //No changed rule matches the villager's trades, so the reload doesn't change how they are processed
+        if (diff != null && !diff.affects(villager.getRecipes())) {
+            return;
+        }
+
+        //The cost includes applying the update, which happens on a later tick once it has been computed off thread
+        plugin.processTradesAsync(villager, this::recordCost);
+        processedTotal.increment();
+    }
+
+    private void recordCost(long elapsed) {
+        averageNanos.getAndUpdate(average -> average + (elapsed - average) / 16);
+    }
+
+    Collection<Villager> getLoadedVillagers() {
+        return loadedVillagers.values();
+    }
+
+    void sendStatus(CommandSender sender) {
+        long average = averageNanos.get();
+        int perTick = (int) Math.max(1, budgetNanos / Math.max(1, average));
+
+        sender.sendMessage("Reconciliation " + (enabled ? "enabled" : "disabled")
+                                   + ", budget " + (budgetNanos / 1_000_000.0) + "ms per tick");
+        sender.sendMessage("Queue depth: " + queue.size() + ", loaded villagers: " + loadedVillagers.size());
+        sender.sendMessage("Processed: " + processedTotal.sum() + " total, " + lastTickDispatched + " last tick, "
+                                   + String.format("%.3f", average / 1_000_000.0) + "ms average each");
+
+        if (!queue.isEmpty()) {
+            sender.sendMessage("Estimated backlog: " + ((queue.size() + perTick - 1) / perTick) + " ticks");
+        }
+    }
+}
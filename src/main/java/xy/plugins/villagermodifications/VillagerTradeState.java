@@ -0,0 +1,141 @@
+package xy.plugins.villagermodifications;
+
+import org.bukkit.NamespacedKey;
+import org.bukkit.inventory.MerchantRecipe;
+import org.bukkit.persistence.PersistentDataContainer;
+import org.bukkit.persistence.PersistentDataType;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Reads and writes the trade state kept in a villager's persistent data, around the {@link TradeProcessor}.
+ * Shared by the plugin's handlers and the load test, which runs them against stand-in villagers and data containers.
+ */
+final class VillagerTradeState {
+    private final NamespacedKey lastCheckedBookIndex; //Last recipe index checked for book level changes
+    private final NamespacedKey tradeFingerprint; //Fingerprint of the trades after they were last processed
+    private final NamespacedKey tradeTags; //Rule ids and min prices of the trades after they were last processed
+
+    /**
+     * @param keys creates the plugin's key with the given name
+     */
+    VillagerTradeState(Function<String, NamespacedKey> keys) {
+        this.lastCheckedBookIndex = keys.apply("last-checked-book-index");
+        this.tradeFingerprint = keys.apply("trade-fingerprint");
+        this.tradeTags = keys.apply("trade-tags");
+    }
+
+    /**
+     * Captures a villager's trades for {@link TradeProcessor#compute}, or returns null if they are unchanged since
+     * they were last processed. Trades a reload didn't affect are moved to the current config generation.
+     * @param detached whether to copy the recipes, so the snapshot can be processed off the villager's thread
+     */
+    TradeSnapshot snapshot(Settings settings, PersistentDataContainer data, UUID villagerId, int villagerLevel,
+                           List<MerchantRecipe> recipes, boolean detached) {
+        Long fingerprint = data.get(tradeFingerprint, PersistentDataType.LONG);
+        int[] existingTags = data.get(tradeTags, PersistentDataType.INTEGER_ARRAY);
+
+        if (TradeProcessor.isProcessed(settings, fingerprint, existingTags, recipes)) {
+            return null;
+        }
+
+        if (TradeProcessor.rebase(settings, fingerprint, existingTags, recipes)) {
+            data.set(tradeTags, PersistentDataType.INTEGER_ARRAY, existingTags);
+            data.set(tradeFingerprint, PersistentDataType.LONG, TradeFingerprint.compute(settings.getGeneration(), recipes));
+            return null;
+        }
+
+        return TradeProcessor.snapshot(settings, villagerId, villagerLevel, getLastCheckedIndex(data), recipes, detached);
+    }
+
+    /**
+     * @return the last recipe index checked for book level changes, -1 if none
+     */
+    int getLastCheckedIndex(PersistentDataContainer data) {
+        Integer lastCheckedIndex = data.get(lastCheckedBookIndex, PersistentDataType.INTEGER);
+        return lastCheckedIndex != null ? lastCheckedIndex : -1;
+    }
+
+    /**
+     * Sets an update's changed recipes on the villager and stores its trade state. Must be called on the villager's
+     * thread.
+     * @param setRecipe sets the recipe at an index
+     * @return the number of recipes rewritten
+     */
+    int apply(PersistentDataContainer data, TradeUpdate update, ObjIntConsumer<MerchantRecipe> setRecipe) {
+        int rewritten = 0;
+
+        for (int pos = 0; pos < update.recipes.size(); pos++) {
+            if (update.isChanged(pos)) {
+                setRecipe.accept(update.recipes.get(pos), pos);
+                rewritten++;
+            }
+        }
+
+        data.set(lastCheckedBookIndex, PersistentDataType.INTEGER, update.lastCheckedIndex);
+        data.set(tradeFingerprint, PersistentDataType.LONG, update.fingerprint);
+        data.set(tradeTags, PersistentDataType.INTEGER_ARRAY, update.tags);
+
+        return rewritten;
+    }
+
+    /**
+     * Keeps trades which were up to date that way after a recipe is appended in eager mode, tagging the new recipe.
+     * @param recipes the trades before the recipe was appended, the recipe is added to them
+     */
+    void append(Settings settings, PersistentDataContainer data, List<MerchantRecipe> recipes, MerchantRecipe recipe,
+                TradeRule rule, int book) {
+        Long fingerprint = data.get(tradeFingerprint, PersistentDataType.LONG);
+
+        if (getLastCheckedIndex(data) != recipes.size() - 1 || (!recipes.isEmpty()
+                && (fingerprint == null || fingerprint != TradeFingerprint.compute(settings.getGeneration(), recipes)))) {
+            return;
+        }
+
+        int[] tags = TradeTags.append(data.get(tradeTags, PersistentDataType.INTEGER_ARRAY), settings.getGeneration(),
+                                      recipes, recipe, rule,
+                                      TradeProcessor.getMinReplenishPrice(settings, recipe, rule, book), book);
+
+        if (tags != null) {
+            data.set(tradeTags, PersistentDataType.INTEGER_ARRAY, tags);
+        } else {
+            data.remove(tradeTags);
+        }
+
+        data.set(lastCheckedBookIndex, PersistentDataType.INTEGER, recipes.size());
+        recipes.add(recipe);
+        data.set(tradeFingerprint, PersistentDataType.LONG, TradeFingerprint.compute(settings.getGeneration(), recipes));
+    }
+
+    /**
+     * Finds the tag stored for a recipe when the villager's trades were last processed.
+     */
+    int getTradeTag(PersistentDataContainer data, int configGeneration, MerchantRecipe recipe, int recipeCount,
+                    IntFunction<MerchantRecipe> recipes) {
+        return TradeProcessor.getTradeTag(data.get(tradeTags, PersistentDataType.INTEGER_ARRAY), configGeneration,
+                                          recipe, recipeCount, recipes);
+    }
+
+    /**
+     * Clears the trade state after a career change, and forgets the villager's recent clicks,
+     * so its new trades are checked from the start on the next click.
+     */
+    void resetCareer(PersistentDataContainer data, int entityId, InteractionCoalescer interactions) {
+        data.remove(lastCheckedBookIndex);
+        data.remove(tradeTags);
+        data.remove(tradeFingerprint);
+        interactions.invalidate(entityId);
+    }
+
+    /**
+     * Clears the fingerprint and tags, so the trades are processed again without rerolling books already checked.
+     */
+    void invalidate(PersistentDataContainer data) {
+        data.remove(tradeFingerprint);
+        data.remove(tradeTags);
+    }
+}
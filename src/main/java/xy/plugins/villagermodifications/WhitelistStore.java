@@ -0,0 +1,34 @@
+package xy.plugins.villagermodifications;
+
+import java.util.Collection;
+import java.util.UUID;
+
+/**
+ * Persistence for the villager whitelist. The whitelist itself is held in memory by the plugin,
+ * stores are notified of each change and decide when and how to write it out.
+ */
+interface WhitelistStore {
+    /**
+     * Reads the persisted whitelist. Called once, before any changes are recorded.
+     */
+    UuidSet load();
+
+    void added(UUID uuid);
+
+    void removed(UUID uuid);
+
+    /**
+     * Records a batch of changes, persisting them together rather than once per change.
+     */
+    void changed(Collection<UUID> added, Collection<UUID> removed);
+
+    /**
+     * Requests that any pending changes are written out.
+     */
+    void save();
+
+    /**
+     * Writes out all pending changes and releases any resources. No further changes may be recorded afterwards.
+     */
+    void close();
+}
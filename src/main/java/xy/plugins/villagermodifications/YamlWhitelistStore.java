@@ -0,0 +1,103 @@
+package xy.plugins.villagermodifications;
+
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * Stores the whitelist as a string list in whitelist.yml, rewriting the whole file on every change.
+ * If journal persistence has written the whitelist since whitelist.yml was last saved, its copy is loaded instead.
+ */
+final class YamlWhitelistStore implements WhitelistStore {
+    private final File whitelistFile;
+    private final Logger logger;
+
+    private FileConfiguration whitelistConfig;
+    private UuidSet whitelist;
+    private List<String> whitelistExtras; //Non-UUID entries, e.g. the initial placeholder, kept so saving doesn't drop them
+
+    YamlWhitelistStore(File whitelistFile, Logger logger) {
+        this.whitelistFile = whitelistFile;
+        this.logger = logger;
+    }
+
+    @Override
+    public UuidSet load() {
+        File dataFolder = this.whitelistFile.getParentFile();
+        boolean journalNewer = JournalWhitelistStore.lastModified(dataFolder) > this.whitelistFile.lastModified();
+
+        this.whitelistConfig = YamlConfiguration.loadConfiguration(this.whitelistFile);
+        this.whitelist = new UuidSet();
+        this.whitelistExtras = new ArrayList<>();
+
+        if (this.whitelistFile.exists()) {
+            for (String entry : this.whitelistConfig.getStringList("whitelist")) {
+                try {
+                    this.whitelist.add(UUID.fromString(entry));
+                } catch (IllegalArgumentException e) {
+                    this.whitelistExtras.add(entry);
+                }
+            }
+        } else {
+            this.whitelistExtras.add("placeholder");
+            this.whitelistConfig.addDefault("whitelist", whitelistExtras);
+            this.whitelistConfig.options().copyDefaults(true);
+            this.save();
+        }
+
+        if (journalNewer) {
+            try {
+                this.whitelist = JournalWhitelistStore.read(dataFolder);
+                this.save();
+
+                logger.info("Loaded " + this.whitelist.size() + " whitelisted villagers from the newer whitelist journal");
+            } catch (IOException e) {
+                logger.severe("Failed to load whitelist journal: " + e);
+            }
+        }
+
+        return this.whitelist;
+    }
+
+    @Override
+    public void added(UUID uuid) {
+        this.save();
+    }
+
+    @Override
+    public void removed(UUID uuid) {
+        this.save();
+    }
+
+    @Override
+    public void changed(Collection<UUID> added, Collection<UUID> removed) {
+        this.save();
+    }
+
+    @Override
+    public synchronized void save() {
+        List<String> entries = new ArrayList<>(this.whitelistExtras);
+
+        for (UUID uuid : this.whitelist.toList()) {
+            entries.add(uuid.toString());
+        }
+
+        this.whitelistConfig.set("whitelist", entries);
+        try {
+            this.whitelistConfig.save(this.whitelistFile);
+        } catch (IOException e) {
+            logger.severe("Failed to save whitelist: " + e);
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}